@@ -23,6 +23,8 @@ import com.google.common.collect.ImmutableMap;
 import org.yaml.snakeyaml.LoaderOptions;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.SafeConstructor;
+import ws.moor.gletscher.cloud.RoundTripVerifier;
+import ws.moor.gletscher.kv.KVStoreOptions;
 import ws.moor.gletscher.util.Cryptor;
 import ws.moor.gletscher.util.Signer;
 import ws.moor.gletscher.util.StreamSplitter;
@@ -105,10 +107,25 @@ public class Configuration {
     return (int) yaml.get("max_split_size");
   }
 
+  private int getAvgSplitSize() {
+    int defaultSize =
+        Math.max(
+            StreamSplitter.MIN_AVG_BLOCK_SIZE,
+            Math.min(1 << 20, Integer.highestOneBit(getMaxSplitSize() / 4)));
+    return (int) yaml.getOrDefault("avg_split_size", defaultSize);
+  }
+
+  private int getMinSplitSize() {
+    return (int) yaml.getOrDefault("min_split_size", getAvgSplitSize() / 4);
+  }
+
   public StreamSplitter getStreamSplitter() {
     switch ((String) yaml.getOrDefault("split_algorithm", "rolling")) {
       case "rolling":
         return StreamSplitter.rollingHashSplitter(getMaxSplitSize());
+      case "fastcdc":
+        return StreamSplitter.fastCdcSplitter(
+            getMinSplitSize(), getAvgSplitSize(), getMaxSplitSize());
       case "fixed":
         return StreamSplitter.fixedSizeSplitter(getMaxSplitSize());
       default:
@@ -116,6 +133,61 @@ public class Configuration {
     }
   }
 
+  /** Returns a new verifier for uploads, every storage layer needs its own. */
+  public RoundTripVerifier newUploadVerifier() {
+    switch ((String) yaml.getOrDefault("upload_verification", "always")) {
+      case "always":
+        return RoundTripVerifier.always();
+      case "sampled":
+        return RoundTripVerifier.sampled((int) yaml.getOrDefault("upload_verification_rate", 16));
+      case "never":
+        return RoundTripVerifier.never();
+      default:
+        throw new IllegalArgumentException("unknown upload verification mode");
+    }
+  }
+
+  public int getBackupThreadCount() {
+    return (int) yaml.getOrDefault("backup_threads", Runtime.getRuntime().availableProcessors());
+  }
+
+  public int getRestoreThreadCount() {
+    return (int) yaml.getOrDefault("restore_threads", Runtime.getRuntime().availableProcessors());
+  }
+
+  public int getCacheShardCount() {
+    return (int) yaml.getOrDefault("cache_shards", 1);
+  }
+
+  public int getCacheThreadCount() {
+    return (int) yaml.getOrDefault("cache_threads", getCacheShardCount());
+  }
+
+  /** Returns the maximum number of bytes of file contents to cache locally, zero if unlimited. */
+  public long getCacheMaxSize() {
+    return (int) yaml.getOrDefault("cache_max_size_mb", 0) * 1024L * 1024L;
+  }
+
+  /** Returns the options to open the local cache's stores with. */
+  public KVStoreOptions getCacheStoreOptions() {
+    KVStoreOptions.KVStoreOptionsBuilder builder = KVStoreOptions.builder();
+    switch ((String) yaml.getOrDefault("cache_wal_sync", "periodic")) {
+      case "never":
+        builder.setWalSync(KVStoreOptions.WalSync.NEVER);
+        break;
+      case "periodic":
+        builder.setWalSync(KVStoreOptions.WalSync.PERIODIC);
+        break;
+      case "always":
+        builder.setWalSync(KVStoreOptions.WalSync.ALWAYS);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown cache wal sync mode");
+    }
+    builder.setOffHeapMemoryLayers((boolean) yaml.getOrDefault("cache_off_heap", true));
+    return builder.build();
+  }
+
   public boolean disableCache() {
     return (boolean) yaml.get("disable_cache");
   }
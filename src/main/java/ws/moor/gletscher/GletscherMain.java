@@ -30,10 +30,12 @@ import ws.moor.gletscher.commands.Commands;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Clock;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -91,6 +93,11 @@ public class GletscherMain {
       return Files.newInputStream(path);
     }
 
+    @Override
+    public FileChannel openFile(Path path) throws IOException {
+      return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
     @Override
     public FileSystem getFileSystem() {
       return FileSystems.getDefault();
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.blocks;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import ws.moor.gletscher.cloud.CloudFileStorage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Resolves block existence per {@code blocks/xx/yy/} prefix. Lookups start out as one exists()
+ * request each. Once enough of them came back negative for a prefix, which means they all went
+ * to the cloud, the whole prefix is listed once and all further lookups for it are answered
+ * locally. Lookups arriving while the listing is in flight wait for it. If the listing fails,
+ * they fall back to exists() requests and the prefix starts counting misses anew.
+ *
+ * <p>Like {@link KnownBlocksIndex}, blocks are identified by the first 64 bits of their
+ * signature: a listing is held as a sorted {@code long[]}, blocks found or stored since in a
+ * small set.
+ *
+ * <p>A listing only misses blocks stored by others after it was taken, which merely results in
+ * an upload failing with {@link CloudFileStorage.FileAlreadyExistsException}.
+ */
+class BlockExistenceChecker {
+
+  // A list request costs about as much as ten exists() requests.
+  static final int DEFAULT_LISTING_THRESHOLD = 10;
+
+  private final CloudFileStorage cloudFileStorage;
+  private final Executor executor;
+  private final int listingThreshold;
+  private final ConcurrentMap<Integer, Prefix> prefixes = new ConcurrentHashMap<>();
+
+  BlockExistenceChecker(
+      CloudFileStorage cloudFileStorage, Executor executor, int listingThreshold) {
+    this.cloudFileStorage = cloudFileStorage;
+    this.executor = executor;
+    this.listingThreshold = listingThreshold;
+  }
+
+  ListenableFuture<Boolean> exists(PersistedBlock block) {
+    return prefixFor(block).exists(block);
+  }
+
+  /** Records that {@code block} now exists in the cloud. */
+  void stored(PersistedBlock block) {
+    prefixFor(block).add(block.getSignature().getLongPrefix());
+  }
+
+  private Prefix prefixFor(PersistedBlock block) {
+    Signature signature = block.getSignature();
+    int key = (signature.getFirstByte() & 0xff) << 8 | (signature.getSecondByte() & 0xff);
+    return prefixes.computeIfAbsent(key, unused -> new Prefix(signature));
+  }
+
+  private final class Prefix {
+    private final String prefix;
+    // Sorted signature prefixes of all files, set once a listing finished successfully.
+    private long[] listed = null;
+    // Signature prefixes of the files found or stored besides the listed ones.
+    private final Set<Long> added = new HashSet<>();
+    private int misses = 0;
+    private ListenableFuture<?> listing = null;
+
+    Prefix(Signature signature) {
+      this.prefix =
+          String.format("blocks/%02x/%02x/", signature.getFirstByte(), signature.getSecondByte());
+    }
+
+    ListenableFuture<Boolean> exists(PersistedBlock block) {
+      long signaturePrefix = block.getSignature().getLongPrefix();
+      ListenableFuture<?> pendingListing;
+      synchronized (this) {
+        if (contains(signaturePrefix)) {
+          return Futures.immediateFuture(true);
+        }
+        pendingListing = listing;
+      }
+
+      String fileName = BlockStore.toFileName(block);
+      if (pendingListing == null) {
+        return Futures.transform(
+            cloudFileStorage.exists(fileName),
+            exists -> {
+              if (exists) {
+                add(signaturePrefix);
+              } else {
+                recordMiss();
+              }
+              return exists;
+            },
+            MoreExecutors.directExecutor());
+      }
+
+      ListenableFuture<Boolean> listed =
+          Futures.transform(
+              pendingListing,
+              unused -> {
+                synchronized (this) {
+                  return contains(signaturePrefix);
+                }
+              },
+              MoreExecutors.directExecutor());
+      // Fall back to asking directly if the listing failed.
+      return Futures.catchingAsync(
+          listed,
+          Exception.class,
+          e -> cloudFileStorage.exists(fileName),
+          MoreExecutors.directExecutor());
+    }
+
+    synchronized void add(long signaturePrefix) {
+      added.add(signaturePrefix);
+    }
+
+    // must hold the monitor
+    private boolean contains(long signaturePrefix) {
+      return (listed != null && Arrays.binarySearch(listed, signaturePrefix) >= 0)
+          || added.contains(signaturePrefix);
+    }
+
+    private void recordMiss() {
+      SettableFuture<Object> newListing;
+      synchronized (this) {
+        if (listing != null || ++misses < listingThreshold) {
+          return;
+        }
+        newListing = SettableFuture.create();
+        listing = newListing;
+      }
+      executor.execute(() -> list(newListing));
+    }
+
+    private void list(SettableFuture<Object> result) {
+      try {
+        long[] signaturePrefixes = new long[64];
+        int count = 0;
+        Iterator<CloudFileStorage.FileHeader> it =
+            cloudFileStorage.listFiles(prefix, Integer.MAX_VALUE);
+        while (it.hasNext()) {
+          if (count == signaturePrefixes.length) {
+            signaturePrefixes = Arrays.copyOf(signaturePrefixes, count * 2);
+          }
+          PersistedBlock block = BlockStore.parseFileName(it.next().name);
+          signaturePrefixes[count++] = block.getSignature().getLongPrefix();
+        }
+        Arrays.sort(signaturePrefixes, 0, count);
+        synchronized (this) {
+          listed = Arrays.copyOf(signaturePrefixes, count);
+          added.removeIf(signaturePrefix -> Arrays.binarySearch(listed, signaturePrefix) >= 0);
+        }
+        result.set(null);
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          listing = null;
+          misses = 0;
+        }
+        result.setException(e);
+      }
+    }
+  }
+}
@@ -18,6 +18,7 @@ package ws.moor.gletscher.blocks;
 
 import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
@@ -27,9 +28,13 @@ import ws.moor.gletscher.cloud.CloudFileStorage;
 import ws.moor.gletscher.util.LegacyHashing;
 import ws.moor.gletscher.util.Signer;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -38,52 +43,131 @@ public class BlockStore {
 
   private final CloudFileStorage cloudFileStorage;
   private final Signer signer;
+  private final BlockExistenceChecker existenceChecker;
+  @Nullable private final KnownBlocksIndex knownBlocks;
 
   public BlockStore(CloudFileStorage cloudFileStorage, Signer signer) {
+    this(cloudFileStorage, signer, MoreExecutors.directExecutor(), null);
+  }
+
+  /**
+   * Prefix listings replacing many existence checks run on {@code executor}. Blocks in {@code
+   * knownBlocks} are assumed to exist without asking the cloud, it is saved on {@link #close}.
+   */
+  public BlockStore(
+      CloudFileStorage cloudFileStorage,
+      Signer signer,
+      Executor executor,
+      @Nullable KnownBlocksIndex knownBlocks) {
     this.cloudFileStorage = cloudFileStorage;
     this.signer = signer;
+    this.knownBlocks = knownBlocks;
+    this.existenceChecker =
+        new BlockExistenceChecker(
+            cloudFileStorage, executor, BlockExistenceChecker.DEFAULT_LISTING_THRESHOLD);
   }
 
   public ListenableFuture<PersistedBlock> store(byte[] block, boolean cache) {
-    HashCode md5 = LegacyHashing.md5().hashBytes(block);
+    return store(ByteBuffer.wrap(block), cache);
+  }
+
+  /**
+   * Stores the remaining bytes of {@code block}. They are hashed and signed in place and only
+   * copied onto the heap if the block has to be uploaded. If {@code block} is a slice of a memory
+   * mapping and the file changed in the meantime, the returned future fails with an {@link
+   * IOException} rather than uploading bytes that don't match their MD5 and signature.
+   */
+  public ListenableFuture<PersistedBlock> store(ByteBuffer block, boolean cache) {
+    HashCode md5;
+    Signature signature;
+    try {
+      md5 = LegacyHashing.md5().newHasher().putBytes(block.duplicate()).hash();
+      signature = signer.computeSignature(block);
+    } catch (InternalError e) {
+      return Futures.immediateFailedFuture(fileChanged(e));
+    }
 
-    int length = block.length;
-    Signature signature = signer.computeSignature(block);
+    int length = block.remaining();
     PersistedBlock persisted = new PersistedBlock(signature, length);
     String fileName = toFileName(persisted);
+    if (knownBlocks != null && knownBlocks.contains(signature)) {
+      return Futures.immediateFuture(persisted);
+    }
 
-    ListenableFuture<Boolean> existsFuture = cloudFileStorage.exists(fileName);
+    ListenableFuture<Boolean> existsFuture = existenceChecker.exists(persisted);
     return Futures.transformAsync(
         existsFuture,
         fileExists -> {
           if (fileExists) {
+            addKnownBlock(signature);
             return Futures.immediateFuture(persisted);
           } else {
+            byte[] bytes;
+            try {
+              bytes = toByteArray(block);
+            } catch (InternalError e) {
+              throw fileChanged(e);
+            }
+            if (block.isDirect() && !LegacyHashing.md5().hashBytes(bytes).equals(md5)) {
+              throw fileChanged(null);
+            }
             ListenableFuture<?> future =
                 cloudFileStorage.store(
                     fileName,
-                    block,
+                    bytes,
                     md5,
                     ImmutableMap.of(),
                     CloudFileStorage.StoreOptions.builder().setCacheContentsOnUpload(cache).build());
             ListenableFuture<PersistedBlock> transformed =
                 Futures.transform(
                     future, Functions.constant(persisted), MoreExecutors.directExecutor());
-            return Futures.catching(
-                transformed,
-                CloudFileStorage.FileAlreadyExistsException.class,
-                Functions.constant(persisted),
+            ListenableFuture<PersistedBlock> stored =
+                Futures.catching(
+                    transformed,
+                    CloudFileStorage.FileAlreadyExistsException.class,
+                    Functions.constant(persisted),
+                    MoreExecutors.directExecutor());
+            return Futures.transform(
+                stored,
+                result -> {
+                  existenceChecker.stored(persisted);
+                  addKnownBlock(signature);
+                  return result;
+                },
                 MoreExecutors.directExecutor());
           }
         },
         MoreExecutors.directExecutor());
   }
 
+  private void addKnownBlock(Signature signature) {
+    if (knownBlocks != null) {
+      knownBlocks.add(signature);
+    }
+  }
+
+  // a mapped file that shrinks makes reading the mapping fail with an InternalError
+  private static IOException fileChanged(@Nullable InternalError cause) {
+    return new IOException("file changed while its blocks were being stored", cause);
+  }
+
+  private static byte[] toByteArray(ByteBuffer buffer) {
+    if (buffer.hasArray()
+        && buffer.arrayOffset() == 0
+        && buffer.position() == 0
+        && buffer.remaining() == buffer.array().length) {
+      return buffer.array();
+    }
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
   public ListenableFuture<byte[]> retrieve(PersistedBlock block) {
     return cloudFileStorage.get(toFileName(block));
   }
 
-  private static String toFileName(PersistedBlock block) {
+  static String toFileName(PersistedBlock block) {
     Signature signature = block.getSignature();
     return String.format(
         "blocks/%02x/%02x/%s:%d",
@@ -114,10 +198,19 @@ public class BlockStore {
           });
     }
     MoreExecutors.shutdownAndAwaitTermination(executor, 1, TimeUnit.HOURS);
+    if (knownBlocks != null) {
+      knownBlocks.reconcile(Collections2.transform(all, PersistedBlock::getSignature));
+    }
     return all;
   }
 
-  private PersistedBlock parseFileName(String name) {
+  public void close() throws IOException {
+    if (knownBlocks != null) {
+      knownBlocks.save();
+    }
+  }
+
+  static PersistedBlock parseFileName(String name) {
     Preconditions.checkArgument(name.startsWith("blocks/"));
     int colon = name.lastIndexOf(":");
     int originalLength = Integer.valueOf(name.substring(colon + 1));
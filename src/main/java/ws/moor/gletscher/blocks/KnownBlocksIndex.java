@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.blocks;
+
+import com.google.common.flogger.FluentLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Set of blocks known to exist in the cloud, persisted in a local file. Blocks are identified
+ * by the first 64 bits of their signature and kept in a sorted {@code long[]}, costing exactly
+ * eight bytes per block. Recent additions go to a small pending set first which is merged into
+ * the array once it grows beyond a sixty-fourth of it.
+ *
+ * <p>With 64 bits per signature, the chance of mistaking a new block for a known one is below
+ * 1e-12 per lookup even with tens of millions of known blocks.
+ */
+public class KnownBlocksIndex {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int MAGIC = 0x6b6e6f77; // "know"
+  private static final int VERSION = 1;
+  private static final int MIN_PENDING_SIZE = 1024;
+
+  private final Path file;
+  private volatile long[] sorted;
+  private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+  private KnownBlocksIndex(Path file, long[] sorted) {
+    this.file = file;
+    this.sorted = sorted;
+  }
+
+  /** Loads the index from {@code file}, starting out empty if it is missing or unreadable. */
+  public static KnownBlocksIndex open(Path file) {
+    try (InputStream is = Files.newInputStream(file)) {
+      return new KnownBlocksIndex(file, read(is));
+    } catch (NoSuchFileException e) {
+      return new KnownBlocksIndex(file, new long[0]);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("discarding unreadable block index %s", file);
+      return new KnownBlocksIndex(file, new long[0]);
+    }
+  }
+
+  public boolean contains(Signature signature) {
+    long prefix = signature.getLongPrefix();
+    return Arrays.binarySearch(sorted, prefix) >= 0 || pending.contains(prefix);
+  }
+
+  public void add(Signature signature) {
+    long prefix = signature.getLongPrefix();
+    if (Arrays.binarySearch(sorted, prefix) < 0
+        && pending.add(prefix)
+        && pending.size() > Math.max(MIN_PENDING_SIZE, sorted.length >> 6)) {
+      mergePending();
+    }
+  }
+
+  /** Replaces the contents with {@code signatures}, which must be all blocks in the cloud. */
+  public synchronized void reconcile(Collection<Signature> signatures) {
+    long[] all = new long[signatures.size()];
+    int i = 0;
+    for (Signature signature : signatures) {
+      all[i++] = signature.getLongPrefix();
+    }
+    sorted = sortedUnique(all, all.length);
+    pending.clear();
+  }
+
+  public int size() {
+    mergePending();
+    return sorted.length;
+  }
+
+  /** Atomically replaces the file with the current contents. */
+  public synchronized void save() throws IOException {
+    mergePending();
+    long[] values = sorted;
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (OutputStream os = Files.newOutputStream(temp)) {
+      CheckedOutputStream checked =
+          new CheckedOutputStream(new BufferedOutputStream(os, 1 << 16), new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(values.length);
+      for (long value : values) {
+        out.writeLong(value);
+      }
+      out.writeLong(checked.getChecksum().getValue());
+      out.flush();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private synchronized void mergePending() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    Long[] added = pending.toArray(new Long[0]);
+    long[] current = sorted;
+    long[] merged = Arrays.copyOf(current, current.length + added.length);
+    for (int i = 0; i < added.length; i++) {
+      merged[current.length + i] = added[i];
+    }
+    sorted = sortedUnique(merged, merged.length);
+    // Only now that the merged array is visible can the pending entries go.
+    for (Long value : added) {
+      pending.remove(value);
+    }
+  }
+
+  private static long[] sortedUnique(long[] values, int length) {
+    Arrays.sort(values, 0, length);
+    int unique = 0;
+    for (int i = 0; i < length; i++) {
+      if (unique == 0 || values[unique - 1] != values[i]) {
+        values[unique++] = values[i];
+      }
+    }
+    return unique == values.length ? values : Arrays.copyOf(values, unique);
+  }
+
+  private static long[] read(InputStream is) throws IOException {
+    CheckedInputStream checked =
+        new CheckedInputStream(new BufferedInputStream(is, 1 << 16), new CRC32());
+    DataInputStream in = new DataInputStream(checked);
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      throw new IOException("unknown block index format");
+    }
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("invalid block count: " + count);
+    }
+    long[] values = new long[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = in.readLong();
+      if (i > 0 && values[i - 1] >= values[i]) {
+        throw new IOException("block index not sorted");
+      }
+    }
+    long expectedChecksum = checked.getChecksum().getValue();
+    if (in.readLong() != expectedChecksum) {
+      throw new IOException("block index checksum mismatch");
+    }
+    return values;
+  }
+}
@@ -18,6 +18,7 @@ package ws.moor.gletscher.blocks;
 
 import com.google.common.base.Preconditions;
 import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Longs;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.protobuf.ByteString;
 
@@ -91,4 +92,11 @@ public final class Signature implements Comparable<Signature> {
   public byte getSecondByte() {
     return signature[1];
   }
+
+  /** Returns the first eight bytes as a big-endian long. */
+  public long getLongPrefix() {
+    return Longs.fromBytes(
+        signature[0], signature[1], signature[2], signature[3],
+        signature[4], signature[5], signature[6], signature[7]);
+  }
 }
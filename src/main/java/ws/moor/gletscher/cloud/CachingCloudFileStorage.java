@@ -17,9 +17,11 @@
 package ws.moor.gletscher.cloud;
 
 import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
 import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnels;
 import com.google.common.hash.HashCode;
+import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -27,43 +29,136 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import ws.moor.gletscher.kv.KVStore;
+import ws.moor.gletscher.kv.KVStoreOptions;
 import ws.moor.gletscher.kv.KVStores;
 import ws.moor.gletscher.kv.Key;
+import ws.moor.gletscher.util.ByteSize;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Caches block contents and known-to-exist files in local {@link KVStore}s. Files are spread over
+ * a number of shards by name, each with its own store in a {@code shard-NN} subdirectory (or the
+ * cache directory itself for a single shard), and the stores are accessed from a pool of cache
+ * threads.
+ *
+ * <p>A Bloom filter per shard over the keys of all cached contents and known-to-exist files
+ * answers most lookups for uncached files without touching the store. As it tells the two apart,
+ * fetching a file only known to exist doesn't touch the store either. It is saved under {@link
+ * #BLOOM_FILTER_KEY} on close, and removed again when loaded so a crash forces it to be rebuilt
+ * from the keys in the store.
+ *
+ * <p>The cached contents can be limited in size. Each shard then keeps its entries in a recency
+ * index ordered by last use, from which the least recently used ones get evicted. Contents cached
+ * on upload (directories and catalogs) are kept in a separate segment that is only evicted from
+ * once everything else is gone. Evicted files are still remembered to exist.
+ */
 public class CachingCloudFileStorage implements CloudFileStorage {
 
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
   private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+  private static final String DATA_PREFIX = "d:";
+  private static final String EXISTS_PREFIX = "e:";
+  private static final Key BLOOM_FILTER_KEY = Key.fromUtf8("bloom-v2");
+  // filters over names rather than keys
+  private static final Key LEGACY_BLOOM_FILTER_KEY = Key.fromUtf8("bloom");
+  private static final String LEGACY_BLOOM_FILTER_PREFIX = "bloom:";
+  private static final int MIN_EXPECTED_INSERTIONS = 1 << 20;
+  private static final double BLOOM_FILTER_FPP = 0.01;
+
+  // [segment][sequence][size] per cached file
+  private static final String META_PREFIX = "m:";
+  // ordered by segment and sequence, with the size as value
+  private static final String RECENCY_PREFIX = "r:";
+  private static final char EVICTABLE_SEGMENT = '0';
+  private static final char PINNED_SEGMENT = '1';
+  // [used bytes][entry count][next sequence], only present after a clean shutdown
+  private static final Key USAGE_KEY = Key.fromUtf8("usage");
+  // evicting frees up a bit more space than needed so it doesn't happen on every store
+  private static final double EVICTION_TARGET = 0.9;
+  // number of cached files whose metadata is looked up at once
+  private static final int REBUILD_BATCH_SIZE = 256;
 
   private final CloudFileStorage delegate;
-  private final KVStore kvStore;
+  private final Shard[] shards;
   private final Clock clock;
   private final ListeningExecutorService executor;
-  private final BloomFilter<String> bloomFilter;
+
+  private final AtomicLong filterNegatives = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong falsePositives = new AtomicLong();
+  private final AtomicLong evictedFiles = new AtomicLong();
+  private final AtomicLong evictedBytes = new AtomicLong();
 
   public CachingCloudFileStorage(CloudFileStorage delegate, Path localCacheDir, Clock clock) {
+    this(delegate, localCacheDir, clock, 1, 1, 0);
+  }
+
+  /**
+   * Creates a cache spread over {@code shardCount} stores, accessed from {@code threads} threads
+   * and holding at most {@code maxSize} bytes of file contents, or any amount if zero.
+   */
+  public CachingCloudFileStorage(
+      CloudFileStorage delegate,
+      Path localCacheDir,
+      Clock clock,
+      int shardCount,
+      int threads,
+      long maxSize) {
+    this(delegate, localCacheDir, clock, shardCount, threads, maxSize, KVStoreOptions.DEFAULT);
+  }
+
+  /** Like the above, opening the shards' stores with {@code storeOptions}. */
+  public CachingCloudFileStorage(
+      CloudFileStorage delegate,
+      Path localCacheDir,
+      Clock clock,
+      int shardCount,
+      int threads,
+      long maxSize,
+      KVStoreOptions storeOptions) {
     Preconditions.checkArgument(Files.isDirectory(localCacheDir, LinkOption.NOFOLLOW_LINKS));
+    Preconditions.checkArgument(shardCount > 0 && shardCount <= 100, "shards: %s", shardCount);
+    Preconditions.checkArgument(threads > 0, "threads: %s", threads);
+    Preconditions.checkArgument(maxSize >= 0, "max size: %s", maxSize);
     this.delegate = delegate;
-    this.kvStore = KVStores.open(localCacheDir);
     this.clock = clock;
+    this.shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      KVStore kvStore =
+          shardCount == 1
+              ? KVStores.open(localCacheDir, storeOptions)
+              : KVStores.openOrCreate(
+                  localCacheDir.resolve(String.format("shard-%02d", i)), storeOptions);
+      shards[i] =
+          new Shard(
+              kvStore, Math.max(1, MIN_EXPECTED_INSERTIONS / shardCount), maxSize / shardCount);
+    }
     this.executor =
         MoreExecutors.listeningDecorator(
             Executors.newFixedThreadPool(
-                1, new ThreadFactoryBuilder().setNameFormat("cache-thread-%d").build()));
-
-    this.bloomFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), 100_000);
+                threads, new ThreadFactoryBuilder().setNameFormat("cache-thread-%d").build()));
   }
 
   @Override
@@ -76,7 +171,7 @@ public class CachingCloudFileStorage implements CloudFileStorage {
           new FutureCallback<Object>() {
             @Override
             public void onSuccess(@Nullable Object unused) {
-              storeData(name, data);
+              shardFor(name).storeData(name, data, true);
             }
 
             @Override
@@ -94,89 +189,123 @@ public class CachingCloudFileStorage implements CloudFileStorage {
 
   @Override
   public ListenableFuture<Boolean> exists(String name) {
-    ListenableFuture<Boolean> future = executor.submit(() -> checkExists(name));
+    Shard shard = shardFor(name);
+    if (!shard.bloomFilter.mightContain(EXISTS_PREFIX + name)
+        && !shard.bloomFilter.mightContain(DATA_PREFIX + name)) {
+      filterNegatives.incrementAndGet();
+      return existsInDelegate(shard, name);
+    }
+    ListenableFuture<Boolean> future = executor.submit(() -> shard.checkExists(name));
     return Futures.transformAsync(
         future,
-        input -> {
-          if (input) {
-            return Futures.immediateFuture(true);
-          } else {
-            ListenableFuture<Boolean> delegateFuture = delegate.exists(name);
-            Futures.addCallback(
-                delegateFuture,
-                new FutureCallback<Boolean>() {
-                  @Override
-                  public void onSuccess(@Nullable Boolean exists) {
-                    if (exists) {
-                      storeExists(name);
-                    }
-                  }
-
-                  @Override
-                  public void onFailure(Throwable throwable) {}
-                },
-                executor);
-            return delegateFuture;
+        input -> input ? Futures.immediateFuture(true) : existsInDelegate(shard, name),
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<Boolean> existsInDelegate(Shard shard, String name) {
+    ListenableFuture<Boolean> delegateFuture = delegate.exists(name);
+    Futures.addCallback(
+        delegateFuture,
+        new FutureCallback<Boolean>() {
+          @Override
+          public void onSuccess(@Nullable Boolean exists) {
+            if (exists) {
+              shard.storeExists(name);
+            }
           }
+
+          @Override
+          public void onFailure(Throwable throwable) {}
         },
-        MoreExecutors.directExecutor());
+        executor);
+    return delegateFuture;
   }
 
   @Override
   public ListenableFuture<byte[]> get(String name) {
-    ListenableFuture<byte[]> data = executor.submit(() -> readData(name));
+    Shard shard = shardFor(name);
+    if (!shard.bloomFilter.mightContain(DATA_PREFIX + name)) {
+      filterNegatives.incrementAndGet();
+      return getFromDelegate(shard, name);
+    }
+    ListenableFuture<byte[]> data = executor.submit(() -> shard.readData(name));
     return Futures.transformAsync(
         data,
-        bytes -> {
-          if (bytes != null) {
-            return Futures.immediateFuture(bytes);
-          } else {
-            ListenableFuture<byte[]> delegateFuture = delegate.get(name);
-            Futures.addCallback(
-                delegateFuture,
-                new FutureCallback<byte[]>() {
-                  @Override
-                  public void onSuccess(@Nullable byte[] data) {
-                    if (data != null) {
-                      storeData(name, data);
-                    }
-                  }
-
-                  @Override
-                  public void onFailure(Throwable t) {}
-                },
-                executor);
-            return delegateFuture;
+        bytes -> bytes != null ? Futures.immediateFuture(bytes) : getFromDelegate(shard, name),
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<byte[]> getFromDelegate(Shard shard, String name) {
+    ListenableFuture<byte[]> delegateFuture = delegate.get(name);
+    Futures.addCallback(
+        delegateFuture,
+        new FutureCallback<byte[]>() {
+          @Override
+          public void onSuccess(@Nullable byte[] data) {
+            if (data != null) {
+              shard.storeData(name, data, false);
+            }
           }
+
+          @Override
+          public void onFailure(Throwable t) {}
         },
-        MoreExecutors.directExecutor());
+        executor);
+    return delegateFuture;
   }
 
-  private void storeExists(String name) {
-    bloomFilter.put(name);
-    kvStore.store(Key.fromUtf8("e:" + name), EMPTY_BYTE_ARRAY);
+  private Shard shardFor(String name) {
+    return shards[Math.floorMod(name.hashCode(), shards.length)];
   }
 
-  private boolean checkExists(String name) {
-    boolean exists =
-        kvStore.contains(Key.fromUtf8("e:" + name)) || kvStore.contains(Key.fromUtf8("d:" + name));
-    if (exists) {
-      bloomFilter.put(name);
+  private void recordFilterPositive(boolean cached) {
+    if (cached) {
+      cacheHits.incrementAndGet();
+    } else {
+      falsePositives.incrementAndGet();
     }
-    return exists;
   }
 
-  private void storeData(String name, byte[] data) {
-    bloomFilter.put(name);
-    kvStore.store(Key.fromUtf8("d:" + name), data);
+  /** Returns the number of lookups the Bloom filter answered without consulting the cache. */
+  public long getFilterNegativeCount() {
+    return filterNegatives.get();
+  }
+
+  public long getCacheHitCount() {
+    return cacheHits.get();
+  }
+
+  /** Returns the number of lookups passing the Bloom filter that weren't cached after all. */
+  public long getFalsePositiveCount() {
+    return falsePositives.get();
+  }
+
+  public long getEvictedFileCount() {
+    return evictedFiles.get();
+  }
+
+  /** Prints how lookups were answered and what got evicted, if there was anything. */
+  public void printSummary(PrintStream stream) {
+    long lookups = filterNegatives.get() + cacheHits.get() + falsePositives.get();
+    if (lookups > 0) {
+      stream.printf(
+          "cache lookups: %d, %d hits, %d filtered, %d false positives\n",
+          lookups, cacheHits.get(), filterNegatives.get(), falsePositives.get());
+    }
+    if (evictedFiles.get() > 0) {
+      stream.printf(
+          "cache evictions: %d, %s\n",
+          evictedFiles.get(), ByteSize.ofBytes(evictedBytes.get()));
+    }
   }
 
-  private byte[] readData(String name) {
-    byte[] data = kvStore.get(Key.fromUtf8("d:" + name));
-    if (data != null) {
-      bloomFilter.put(name);
+  /** Returns the number of bytes of file contents cached over all shards. */
+  public long getCachedSize() {
+    long size = 0;
+    for (Shard shard : shards) {
+      size += shard.getUsedBytes();
     }
-    return data;
+    return size;
   }
 
   @Override
@@ -184,19 +313,275 @@ public class CachingCloudFileStorage implements CloudFileStorage {
     delegate.close();
     MoreExecutors.shutdownAndAwaitTermination(executor, 1, TimeUnit.MINUTES);
 
-    storeBloomFilter();
-    kvStore.close();
+    for (Shard shard : shards) {
+      shard.close();
+    }
+  }
+
+  private static KVStore.Scan withPrefix(KVStore kvStore, String prefix) {
+    Key start = Key.fromUtf8(prefix);
+    return kvStore.scan(start, start.prefixEnd());
+  }
+
+  private static String suffix(Key key, int prefixLength) {
+    byte[] bytes = key.toByteArray();
+    return new String(bytes, prefixLength, bytes.length - prefixLength, StandardCharsets.UTF_8);
   }
 
-  private void storeBloomFilter() {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    try {
-      bloomFilter.writeTo(baos);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  private final class Shard {
+    private final KVStore kvStore;
+    private final int expectedInsertions;
+    private final BloomFilter<String> bloomFilter;
+
+    // usage of a size limited shard, guarded by the shard
+    private final long maxBytes;
+    private long usedBytes = 0;
+    private long entryCount = 0;
+    private long nextSequence = 0;
+
+    Shard(KVStore kvStore, int minExpectedInsertions, long maxBytes) {
+      this.kvStore = kvStore;
+      this.maxBytes = maxBytes;
+
+      deleteLegacyBloomFilters();
+      BloomFilter<String> loaded = null;
+      int loadedExpectedInsertions = 0;
+      byte[] serialized = kvStore.get(BLOOM_FILTER_KEY);
+      if (serialized != null) {
+        kvStore.delete(BLOOM_FILTER_KEY);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized))) {
+          loadedExpectedInsertions = in.readInt();
+          loaded = BloomFilter.readFrom(in, Funnels.stringFunnel(StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+          logger.atWarning().withCause(e).log("discarding unreadable bloom filter");
+          loaded = null;
+        }
+      }
+      if (loaded != null && loaded.approximateElementCount() <= loadedExpectedInsertions) {
+        this.expectedInsertions = loadedExpectedInsertions;
+        this.bloomFilter = loaded;
+      } else {
+        // Missing, stale after a crash, or too full to be useful.
+        List<String> keys = listCachedKeys();
+        this.expectedInsertions = Math.max(minExpectedInsertions, 2 * keys.size());
+        this.bloomFilter =
+            BloomFilter.create(
+                Funnels.stringFunnel(StandardCharsets.UTF_8), expectedInsertions, BLOOM_FILTER_FPP);
+        keys.forEach(bloomFilter::put);
+      }
+
+      byte[] usage = kvStore.get(USAGE_KEY);
+      if (usage != null) {
+        kvStore.delete(USAGE_KEY);
+      }
+      if (maxBytes > 0) {
+        if (usage != null) {
+          ByteBuffer buffer = ByteBuffer.wrap(usage);
+          usedBytes = buffer.getLong();
+          entryCount = buffer.getLong();
+          nextSequence = buffer.getLong();
+        } else {
+          // Missing after a crash, or while the size wasn't limited.
+          rebuildRecencyIndex();
+        }
+        evictIfNeeded();
+      }
+    }
+
+    // Keys go into the filter before the store so it never misses anything that is cached.
+    void storeExists(String name) {
+      bloomFilter.put(EXISTS_PREFIX + name);
+      kvStore.store(Key.fromUtf8(EXISTS_PREFIX + name), EMPTY_BYTE_ARRAY);
+    }
+
+    boolean checkExists(String name) {
+      boolean exists =
+          kvStore.contains(Key.fromUtf8(EXISTS_PREFIX + name))
+              || kvStore.contains(Key.fromUtf8(DATA_PREFIX + name));
+      recordFilterPositive(exists);
+      return exists;
+    }
+
+    void storeData(String name, byte[] data, boolean pinned) {
+      bloomFilter.put(DATA_PREFIX + name);
+      Key key = Key.fromUtf8(DATA_PREFIX + name);
+      if (maxBytes == 0) {
+        kvStore.store(key, data);
+        return;
+      }
+      // An eviction in between must not drop the contents, or see them without their metadata.
+      synchronized (this) {
+        kvStore.store(key, data);
+        ByteBuffer meta = readMeta(name);
+        if (meta != null) {
+          forget(name, meta);
+        }
+        track(name, pinned ? PINNED_SEGMENT : EVICTABLE_SEGMENT, data.length);
+        evictIfNeeded();
+      }
+    }
+
+    byte[] readData(String name) {
+      byte[] data = kvStore.get(Key.fromUtf8(DATA_PREFIX + name));
+      recordFilterPositive(data != null);
+      if (data != null && maxBytes > 0) {
+        touch(name);
+      }
+      return data;
+    }
+
+    synchronized long getUsedBytes() {
+      return usedBytes;
+    }
+
+    // Moves an entry to the front of its segment, unless it's among the most recently used anyway.
+    private synchronized void touch(String name) {
+      ByteBuffer meta = readMeta(name);
+      if (meta == null) {
+        return;
+      }
+      char segment = (char) meta.get(0);
+      long sequence = meta.getLong(1);
+      if (sequence < nextSequence - entryCount / 4) {
+        forget(name, meta);
+        track(name, segment, meta.getInt(9));
+      }
+    }
+
+    @Nullable
+    private ByteBuffer readMeta(String name) {
+      byte[] meta = kvStore.get(Key.fromUtf8(META_PREFIX + name));
+      return meta != null ? ByteBuffer.wrap(meta) : null;
+    }
+
+    private void track(String name, char segment, int size) {
+      long sequence = nextSequence++;
+      ByteBuffer meta = ByteBuffer.allocate(13);
+      meta.put((byte) segment).putLong(sequence).putInt(size);
+      kvStore.store(Key.fromUtf8(META_PREFIX + name), meta.array());
+      kvStore.store(recencyKey(segment, sequence, name), Ints.toByteArray(size));
+      usedBytes += size;
+      entryCount++;
     }
 
-    Key key = Key.fromUtf8(String.format("bloom:%d", clock.millis()));
-    kvStore.store(key, baos.toByteArray());
+    private void forget(String name, ByteBuffer meta) {
+      kvStore.delete(recencyKey((char) meta.get(0), meta.getLong(1), name));
+      usedBytes -= meta.getInt(9);
+      entryCount--;
+    }
+
+    private Key recencyKey(char segment, long sequence, String name) {
+      return Key.fromUtf8(String.format("%s%c%016x%s", RECENCY_PREFIX, segment, sequence, name));
+    }
+
+    // Only the least recently used entries get looked at, no need to scan the whole cache.
+    private synchronized void evictIfNeeded() {
+      if (usedBytes <= maxBytes) {
+        return;
+      }
+      long target = (long) (maxBytes * EVICTION_TARGET);
+      int prefixLength = RECENCY_PREFIX.length() + 1 + 16;
+      for (char segment : new char[] {EVICTABLE_SEGMENT, PINNED_SEGMENT}) {
+        // closed right away, so the layers compacted away by the deletes don't stay around
+        try (KVStore.Scan it = withPrefix(kvStore, RECENCY_PREFIX + segment)) {
+          while (usedBytes > target && it.hasNext()) {
+            KVStore.Entry entry = it.next();
+            String name = suffix(entry.getKey(), prefixLength);
+            int size = Ints.fromByteArray(entry.read());
+            kvStore.delete(entry.getKey());
+            kvStore.delete(Key.fromUtf8(META_PREFIX + name));
+            kvStore.delete(Key.fromUtf8(DATA_PREFIX + name));
+            // it's still in the cloud
+            storeExists(name);
+            usedBytes -= size;
+            entryCount--;
+            evictedFiles.incrementAndGet();
+            evictedBytes.addAndGet(size);
+          }
+        }
+      }
+    }
+
+    private void rebuildRecencyIndex() {
+      try (KVStore.Scan metas = withPrefix(kvStore, META_PREFIX)) {
+        while (metas.hasNext()) {
+          nextSequence =
+              Math.max(nextSequence, ByteBuffer.wrap(metas.next().read()).getLong(1) + 1);
+        }
+      }
+      Map<String, Integer> sizes = new LinkedHashMap<>();
+      try (KVStore.Scan data = withPrefix(kvStore, DATA_PREFIX)) {
+        while (data.hasNext()) {
+          KVStore.Entry entry = data.next();
+          sizes.put(suffix(entry.getKey(), DATA_PREFIX.length()), entry.size());
+          if (sizes.size() == REBUILD_BATCH_SIZE || !data.hasNext()) {
+            rebuildRecencyIndex(sizes);
+            sizes.clear();
+          }
+        }
+      }
+    }
+
+    private void rebuildRecencyIndex(Map<String, Integer> sizes) {
+      List<Key> metaKeys = new ArrayList<>(sizes.size());
+      for (String name : sizes.keySet()) {
+        metaKeys.add(Key.fromUtf8(META_PREFIX + name));
+      }
+      Map<Key, byte[]> metas = kvStore.multiGet(metaKeys);
+      for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+        if (!metas.containsKey(Key.fromUtf8(META_PREFIX + entry.getKey()))) {
+          track(entry.getKey(), EVICTABLE_SEGMENT, entry.getValue());
+        } else {
+          usedBytes += entry.getValue();
+          entryCount++;
+        }
+      }
+    }
+
+    void close() {
+      storeBloomFilter();
+      if (maxBytes > 0) {
+        synchronized (this) {
+          ByteBuffer usage = ByteBuffer.allocate(24);
+          usage.putLong(usedBytes).putLong(entryCount).putLong(nextSequence);
+          kvStore.store(USAGE_KEY, usage.array());
+        }
+      }
+      kvStore.close();
+    }
+
+    private List<String> listCachedKeys() {
+      List<String> keys = new ArrayList<>();
+      for (String prefix : new String[] {DATA_PREFIX, EXISTS_PREFIX}) {
+        try (KVStore.Scan it = withPrefix(kvStore, prefix)) {
+          while (it.hasNext()) {
+            keys.add(suffix(it.next().getKey(), 0));
+          }
+        }
+      }
+      return keys;
+    }
+
+    private void deleteLegacyBloomFilters() {
+      List<Key> legacyKeys = new ArrayList<>();
+      try (KVStore.Scan it = withPrefix(kvStore, LEGACY_BLOOM_FILTER_PREFIX)) {
+        while (it.hasNext()) {
+          legacyKeys.add(it.next().getKey());
+        }
+      }
+      legacyKeys.add(LEGACY_BLOOM_FILTER_KEY);
+      legacyKeys.forEach(kvStore::delete);
+    }
+
+    private void storeBloomFilter() {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(baos)) {
+        out.writeInt(expectedInsertions);
+        bloomFilter.writeTo(out);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      kvStore.store(BLOOM_FILTER_KEY, baos.toByteArray());
+    }
   }
 }
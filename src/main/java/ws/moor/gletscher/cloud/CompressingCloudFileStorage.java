@@ -23,7 +23,12 @@ public class CompressingCloudFileStorage extends TransformingCloudFileStorage {
   private final Compressor compressor;
 
   public CompressingCloudFileStorage(CloudFileStorage delegate, Compressor compressor) {
-    super(delegate);
+    this(delegate, compressor, RoundTripVerifier.always());
+  }
+
+  public CompressingCloudFileStorage(
+      CloudFileStorage delegate, Compressor compressor, RoundTripVerifier verifier) {
+    super(delegate, verifier);
     this.compressor = compressor;
   }
 
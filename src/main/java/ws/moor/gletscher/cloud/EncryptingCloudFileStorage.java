@@ -23,7 +23,12 @@ public class EncryptingCloudFileStorage extends TransformingCloudFileStorage {
   private final Cryptor cryptor;
 
   public EncryptingCloudFileStorage(CloudFileStorage delegate, Cryptor cryptor) {
-    super(delegate);
+    this(delegate, cryptor, RoundTripVerifier.always());
+  }
+
+  public EncryptingCloudFileStorage(
+      CloudFileStorage delegate, Cryptor cryptor, RoundTripVerifier verifier) {
+    super(delegate, verifier);
     this.cryptor = cryptor;
   }
 
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.cloud;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which uploads of a {@link TransformingCloudFileStorage} are decoded again and compared
+ * with the original, and keeps track of how many were and how long it took. Each storage layer
+ * needs its own instance.
+ */
+public class RoundTripVerifier {
+
+  public enum Mode {
+    ALWAYS,
+    SAMPLED,
+    NEVER
+  }
+
+  private final Mode mode;
+  private final int rate;
+  private final AtomicLong uploadCount = new AtomicLong();
+  private final AtomicLong verifiedCount = new AtomicLong();
+  private final AtomicLong skippedCount = new AtomicLong();
+  private final AtomicLong verificationNanos = new AtomicLong();
+
+  private RoundTripVerifier(Mode mode, int rate) {
+    this.mode = mode;
+    this.rate = rate;
+  }
+
+  public static RoundTripVerifier always() {
+    return new RoundTripVerifier(Mode.ALWAYS, 1);
+  }
+
+  /** Verifies every {@code rate}th upload, starting with the first. */
+  public static RoundTripVerifier sampled(int rate) {
+    Preconditions.checkArgument(rate > 0, "rate must be positive: %s", rate);
+    return new RoundTripVerifier(Mode.SAMPLED, rate);
+  }
+
+  public static RoundTripVerifier never() {
+    return new RoundTripVerifier(Mode.NEVER, 0);
+  }
+
+  boolean shouldVerify() {
+    boolean verify =
+        switch (mode) {
+          case ALWAYS -> true;
+          case SAMPLED -> uploadCount.getAndIncrement() % rate == 0;
+          case NEVER -> false;
+        };
+    if (!verify) {
+      skippedCount.incrementAndGet();
+    }
+    return verify;
+  }
+
+  void recordVerification(long nanos) {
+    verifiedCount.incrementAndGet();
+    verificationNanos.addAndGet(nanos);
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /** Returns N if every Nth upload is verified, or 0 if none are. */
+  public int getRate() {
+    return rate;
+  }
+
+  public long getVerifiedCount() {
+    return verifiedCount.get();
+  }
+
+  public long getSkippedCount() {
+    return skippedCount.get();
+  }
+
+  public long getVerificationTime(TimeUnit unit) {
+    return unit.convert(verificationNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s: %d verified, %d skipped, %d ms verifying",
+        mode.name().toLowerCase(),
+        getVerifiedCount(),
+        getSkippedCount(),
+        getVerificationTime(TimeUnit.MILLISECONDS));
+  }
+}
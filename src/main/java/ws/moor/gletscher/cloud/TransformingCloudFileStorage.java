@@ -31,6 +31,7 @@ import java.util.function.Function;
 abstract class TransformingCloudFileStorage implements CloudFileStorage {
 
   private final CloudFileStorage delegate;
+  private final RoundTripVerifier verifier;
   private final Function<byte[], byte[]> decodingFn =
       new Function<byte[], byte[]>() {
         @Nullable
@@ -40,22 +41,31 @@ abstract class TransformingCloudFileStorage implements CloudFileStorage {
         }
       };
 
-  TransformingCloudFileStorage(CloudFileStorage delegate) {
+  /**
+   * Uploads are always checked against the MD5 they come with, files selected by {@code verifier}
+   * are also decoded again and compared with the original before uploading.
+   */
+  TransformingCloudFileStorage(CloudFileStorage delegate, RoundTripVerifier verifier) {
     this.delegate = delegate;
+    this.verifier = verifier;
   }
 
   @Override
   public ListenableFuture<?> store(
       String name, byte[] data, HashCode md5, Map<String, String> metadata, StoreOptions options) {
+    // ties the caller's hash to the bytes actually uploaded, cheap enough to never skip
+    if (!LegacyHashing.md5().hashBytes(data).equals(md5)) {
+      throw new IllegalStateException("oops, data does not match its md5");
+    }
     byte[] encoded = encode(data);
     HashCode encodedMd5 = LegacyHashing.md5().hashBytes(encoded);
 
-    byte[] restoredData = decode(encoded);
-    if (!LegacyHashing.md5().hashBytes(restoredData).equals(md5)) {
-      throw new IllegalStateException("oops, return trip does not match");
-    }
-    if (!Arrays.equals(data, restoredData)) {
-      throw new IllegalStateException("oops, even more unlikely!");
+    if (verifier.shouldVerify()) {
+      long start = System.nanoTime();
+      if (!Arrays.equals(data, decode(encoded))) {
+        throw new IllegalStateException("oops, return trip does not match");
+      }
+      verifier.recordVerification(System.nanoTime() - start);
     }
     return delegate.store(name, encoded, encodedMd5, metadata, options);
   }
@@ -80,6 +90,10 @@ abstract class TransformingCloudFileStorage implements CloudFileStorage {
     delegate.close();
   }
 
+  public RoundTripVerifier getVerifier() {
+    return verifier;
+  }
+
   protected abstract byte[] encode(byte[] data);
 
   protected abstract byte[] decode(byte[] data);
@@ -25,6 +25,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import ws.moor.gletscher.Configuration;
 import ws.moor.gletscher.blocks.BlockStore;
+import ws.moor.gletscher.blocks.KnownBlocksIndex;
 import ws.moor.gletscher.catalog.CatalogStore;
 import ws.moor.gletscher.cloud.CachingCloudFileStorage;
 import ws.moor.gletscher.cloud.CloudFileStorage;
@@ -32,15 +33,19 @@ import ws.moor.gletscher.cloud.CompressingCloudFileStorage;
 import ws.moor.gletscher.cloud.CostTracker;
 import ws.moor.gletscher.cloud.CountingCloudFileStorage;
 import ws.moor.gletscher.cloud.EncryptingCloudFileStorage;
+import ws.moor.gletscher.cloud.RoundTripVerifier;
 import ws.moor.gletscher.cloud.SigningCloudFileStorage;
 import ws.moor.gletscher.util.Compressor;
 import ws.moor.gletscher.util.Cryptor;
 import ws.moor.gletscher.util.Signer;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 abstract class AbstractCommand {
@@ -50,6 +55,8 @@ abstract class AbstractCommand {
 
   private boolean hasConfigArg = false;
   private final CostTracker costTracker = new CostTracker();
+  private final Map<String, RoundTripVerifier> uploadVerifiers = new LinkedHashMap<>();
+  @Nullable private CachingCloudFileStorage cache = null;
 
   protected Configuration config;
   private CloudFileStorage cloudFileStorage;
@@ -77,13 +84,25 @@ abstract class AbstractCommand {
     if (hasConfigArg) {
       config = loadConfig(commandLine);
       cloudFileStorage = buildCloudFileStorage(config, costTracker);
-      blockStore = new BlockStore(cloudFileStorage, new Signer(config.getSigningKey()));
+      KnownBlocksIndex knownBlocks =
+          config.disableCache()
+              ? null
+              : KnownBlocksIndex.open(config.getLocalCacheDir().resolve("known-blocks"));
+      blockStore =
+          new BlockStore(
+              cloudFileStorage,
+              new Signer(config.getSigningKey()),
+              context.getExecutor(),
+              knownBlocks);
       catalogStore = new CatalogStore(context.getFileSystem(), cloudFileStorage, blockStore);
     }
 
     List<String> argList = new ArrayList<>(commandLine.getArgList());
     int returnCode = runInternal(commandLine, argList);
 
+    if (blockStore != null) {
+      blockStore.close();
+    }
     if (cloudFileStorage != null) {
       cloudFileStorage.close(); // caches can clean-up
     }
@@ -91,6 +110,15 @@ abstract class AbstractCommand {
     if (costTracker.hasUsage()) {
       costTracker.printSummary(context.getStdErr());
     }
+    if (cache != null) {
+      cache.printSummary(context.getStdErr());
+    }
+    uploadVerifiers.forEach(
+        (name, verifier) -> {
+          if (verifier.getVerifiedCount() + verifier.getSkippedCount() > 0) {
+            context.getStdErr().printf("%s round trips: %s\n", name, verifier);
+          }
+        });
     return returnCode;
   }
 
@@ -111,18 +139,36 @@ abstract class AbstractCommand {
     CountingCloudFileStorage counting = new CountingCloudFileStorage(cloudFileStorage);
     cloudFileStorage = counting;
     if (!config.disableCache()) {
-      cloudFileStorage =
-          new CachingCloudFileStorage(counting, config.getLocalCacheDir(), context.getClock());
+      cache =
+          new CachingCloudFileStorage(
+              counting,
+              config.getLocalCacheDir(),
+              context.getClock(),
+              config.getCacheShardCount(),
+              config.getCacheThreadCount(),
+              config.getCacheMaxSize(),
+              config.getCacheStoreOptions());
+      cloudFileStorage = cache;
     }
     cloudFileStorage =
         new SigningCloudFileStorage(cloudFileStorage, new Signer(config.getSigningKey()));
     cloudFileStorage =
         new EncryptingCloudFileStorage(
-            cloudFileStorage, new Cryptor(config.getEncryptionKey(), config.getSigningKey()));
-    cloudFileStorage = new CompressingCloudFileStorage(cloudFileStorage, new Compressor());
+            cloudFileStorage,
+            new Cryptor(config.getEncryptionKey(), config.getSigningKey()),
+            newUploadVerifier("encryption"));
+    cloudFileStorage =
+        new CompressingCloudFileStorage(
+            cloudFileStorage, new Compressor(), newUploadVerifier("compression"));
     return cloudFileStorage;
   }
 
+  private RoundTripVerifier newUploadVerifier(String name) {
+    RoundTripVerifier verifier = config.newUploadVerifier();
+    uploadVerifiers.put(name, verifier);
+    return verifier;
+  }
+
   void printUsage(PrintStream out) {
     // TODO(pmoor): customize further
     out.println("Usage:");
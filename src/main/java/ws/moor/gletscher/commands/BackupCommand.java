@@ -22,7 +22,9 @@ import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.AsyncCallable;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import ws.moor.gletscher.blocks.BlockStore;
@@ -39,6 +41,8 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Clock;
@@ -53,7 +57,6 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
@@ -95,16 +98,32 @@ class BackupCommand extends AbstractCommand {
     BackupObserver observer = new BackupObserver(context.getStdOut(), context.getStdErr());
     FileSystemReader fileSystemReader =
         new FileSystemReader(config.getIncludes(), observer);
-    BackUpper backUpper =
-        new BackUpper(
-            catalogReader,
-            splitter,
-            blockStore,
-            config.getExcludes(),
-            observer,
-            context.getClock(),
-            context);
-    Map<Path, PersistedBlock> roots = getUnchecked(fileSystemReader.start(backUpper));
+    int threadCount = config.getBackupThreadCount();
+    ListeningExecutorService workers =
+        MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(
+                threadCount,
+                new ThreadFactoryBuilder()
+                    .setNameFormat("backup-worker-%d")
+                    .setDaemon(true)
+                    .build()));
+    Map<Path, PersistedBlock> roots;
+    try {
+      BackUpper backUpper =
+          new BackUpper(
+              catalogReader,
+              splitter,
+              blockStore,
+              config.getExcludes(),
+              observer,
+              context.getClock(),
+              context,
+              workers,
+              threadCount);
+      roots = getUnchecked(fileSystemReader.start(backUpper));
+    } finally {
+      workers.shutdown();
+    }
 
     Instant endTime = context.getClock().instant();
     Catalog catalog = Catalog.fromNewBackup(startTime, endTime, roots, latestCatalog.orElse(null));
@@ -166,17 +185,26 @@ class BackupCommand extends AbstractCommand {
   private static class BackUpper
       implements FileSystemReader.Visitor<ListenableFuture<PersistedBlock>> {
 
+    // Larger files are split through memory mappings instead of being read onto the heap.
+    private static final long MAPPED_READ_THRESHOLD = 16 << 20;
+
     private final CatalogReader catalogReader;
     private final StreamSplitter splitter;
     private final BlockStore blockStore;
     private final Set<Pattern> skipPatterns;
     private final BackupObserver observer;
     private final Clock clock;
+    private final Semaphore pendingFiles;
     private final Semaphore pendingStoreRequests;
     private final Semaphore pendingStoreBytes;
     private final CommandContext context;
-    private final Executor executor = Executors.newSingleThreadExecutor();
+    private final ListeningExecutorService workers;
 
+    /**
+     * Files are read, split and signed on {@code workers}, with at most two files per thread
+     * queued up. The number of bytes waiting to be stored is bounded as well, so memory usage
+     * stays proportional to the number of threads rather than to the size of the tree.
+     */
     BackUpper(
         CatalogReader catalogReader,
         StreamSplitter splitter,
@@ -184,16 +212,25 @@ class BackupCommand extends AbstractCommand {
         Set<Pattern> skipPatterns,
         BackupObserver observer,
         Clock clock,
-        CommandContext context) {
+        CommandContext context,
+        ListeningExecutorService workers,
+        int threadCount) {
       this.catalogReader = catalogReader;
       this.splitter = splitter;
       this.blockStore = blockStore;
       this.skipPatterns = skipPatterns;
       this.observer = observer;
       this.clock = clock;
-      this.pendingStoreRequests = new Semaphore(64);
-      this.pendingStoreBytes = new Semaphore(64 << 20);
+      this.pendingFiles = new Semaphore(2 * threadCount);
+      this.pendingStoreRequests = new Semaphore(Math.max(64, 4 * threadCount));
+      this.pendingStoreBytes =
+          new Semaphore(
+              (int)
+                  Math.min(
+                      1 << 30,
+                      Math.max(64 << 20, 2L * threadCount * splitter.getMaxBlockSize())));
       this.context = context;
+      this.workers = workers;
     }
 
     @Override
@@ -270,7 +307,7 @@ class BackupCommand extends AbstractCommand {
                   return storeThrottled(dirProto.toByteArray(), /*cache=*/true);
                 }
               },
-              executor);
+              workers);
     }
 
     private static boolean hasBeenModified(@Nullable CatalogReader.CatalogDirectory existingDirectory, Gletscher.Directory newProto) {
@@ -305,7 +342,7 @@ class BackupCommand extends AbstractCommand {
         } else {
           observer.changedFile(existingFile, entry);
         }
-        ListenableFuture<List<PersistedBlock>> contentsFuture = uploadFileContents(entry.path);
+        ListenableFuture<List<PersistedBlock>> contentsFuture = uploadFileContents(entry.path, entry.attributes.size());
         return Futures.transform(
             contentsFuture,
             new Function<List<PersistedBlock>, Gletscher.DirectoryEntry>() {
@@ -336,20 +373,56 @@ class BackupCommand extends AbstractCommand {
       }
     }
 
-    private ListenableFuture<List<PersistedBlock>> uploadFileContents(Path path) {
+    private ListenableFuture<List<PersistedBlock>> uploadFileContents(Path path, long size) {
+      pendingFiles.acquireUninterruptibly();
+      return Futures.submitAsync(() -> splitAndStore(path, size), workers);
+    }
+
+    private ListenableFuture<List<PersistedBlock>> splitAndStore(Path path, long size) {
       List<ListenableFuture<PersistedBlock>> futures = new ArrayList<>();
-      try (InputStream is = context.readFile(path)) {
-        Iterator<byte[]> parts = splitter.split(is);
-        while (parts.hasNext()) {
-          byte[] part = parts.next();
-          futures.add(storeThrottled(part, false));
+      try {
+        if (size < MAPPED_READ_THRESHOLD || !splitMapped(path, futures)) {
+          try (InputStream is = context.readFile(path)) {
+            Iterator<byte[]> parts = splitter.split(is);
+            while (parts.hasNext()) {
+              byte[] part = parts.next();
+              futures.add(storeThrottled(part, false));
+            }
+          }
         }
       } catch (IOException | RuntimeException e) {
         return Futures.immediateFailedFuture(e);
+      } finally {
+        pendingFiles.release();
       }
       return Futures.allAsList(futures);
     }
 
+    /**
+     * Splits and stores the file through memory mappings, returns false without storing anything
+     * if the file system doesn't support mapping files.
+     */
+    private boolean splitMapped(Path path, List<ListenableFuture<PersistedBlock>> futures)
+        throws IOException {
+      try (FileChannel channel = context.openFile(path)) {
+        Iterator<ByteBuffer> parts;
+        try {
+          parts = splitter.split(channel);
+        } catch (UnsupportedOperationException e) {
+          return false;
+        }
+        try {
+          while (parts.hasNext()) {
+            futures.add(storeThrottled(parts.next(), false));
+          }
+        } catch (InternalError e) {
+          // reading the mapping past the end of a file that shrank
+          throw new IOException("file changed while being read: " + path, e);
+        }
+        return true;
+      }
+    }
+
     private ListenableFuture<Gletscher.DirectoryEntry> handleSymbolicLink(
         FileSystemReader.Entry entry) {
       try {
@@ -365,10 +438,15 @@ class BackupCommand extends AbstractCommand {
     }
 
     private ListenableFuture<PersistedBlock> storeThrottled(byte[] part, boolean cache) {
+      return storeThrottled(ByteBuffer.wrap(part), cache);
+    }
+
+    private ListenableFuture<PersistedBlock> storeThrottled(ByteBuffer part, boolean cache) {
+      int length = part.remaining();
       pendingStoreRequests.acquireUninterruptibly();
-      pendingStoreBytes.acquireUninterruptibly(part.length);
+      pendingStoreBytes.acquireUninterruptibly(length);
       ListenableFuture<PersistedBlock> future = blockStore.store(part, cache);
-      releaseWhenDone(future, pendingStoreBytes, part.length);
+      releaseWhenDone(future, pendingStoreBytes, length);
       releaseWhenDone(future, pendingStoreRequests, 1);
       return future;
     }
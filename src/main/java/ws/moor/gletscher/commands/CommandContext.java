@@ -24,6 +24,7 @@ import ws.moor.gletscher.cloud.CostTracker;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.time.Clock;
@@ -46,4 +47,6 @@ public interface CommandContext {
   CloudFileStorage connectToCloud(Configuration config, CostTracker costTracker);
 
   InputStream readFile(Path path) throws IOException;
+
+  FileChannel openFile(Path path) throws IOException;
 }
@@ -16,7 +16,14 @@
 
 package ws.moor.gletscher.commands;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import ws.moor.gletscher.blocks.BlockStore;
@@ -24,16 +31,34 @@ import ws.moor.gletscher.blocks.PersistedBlock;
 import ws.moor.gletscher.catalog.Catalog;
 import ws.moor.gletscher.proto.Gletscher;
 
-import java.io.BufferedOutputStream;
+import javax.annotation.Nullable;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Command(name = "restore", description = "Restore a backup locally.")
 class RestoreCommand extends AbstractCommand {
@@ -65,52 +90,391 @@ class RestoreCommand extends AbstractCommand {
       return -1;
     }
 
-    Gletscher.Directory rootDir =
-        Gletscher.Directory.parseFrom(
-            Futures.getUnchecked(blockStore.retrieve(catalog.get().getOnlyRootBlock())));
-    restoreInner(blockStore, rootDir, restoreRoot);
+    int threadCount = config.getRestoreThreadCount();
+    ListeningExecutorService workers =
+        MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(
+                threadCount,
+                new ThreadFactoryBuilder()
+                    .setNameFormat("restore-worker-%d")
+                    .setDaemon(true)
+                    .build()));
+    try {
+      new Restorer(blockStore, workers, threadCount)
+          .restore(catalog.get().getOnlyRootBlock(), restoreRoot, context.getStdOut());
+    } finally {
+      workers.shutdown();
+    }
     return 0;
   }
 
-  private void restoreInner(BlockStore blockStore, Gletscher.Directory dir, Path path)
-      throws IOException {
-    for (Gletscher.DirectoryEntry entry : dir.getEntryList()) {
-      switch (entry.getTypeCase()) {
-        case FILE:
-          Path tmpFile = Files.createTempFile(path, ".gletscher-", ".tmprestore");
-          OutputStream fos =
-              new BufferedOutputStream(
-                  Files.newOutputStream(tmpFile, StandardOpenOption.TRUNCATE_EXISTING));
-          for (Gletscher.PersistedBlock block : entry.getFile().getBlockList()) {
-            byte[] data =
-                Futures.getUnchecked(blockStore.retrieve(PersistedBlock.fromProto(block)));
-            fos.write(data);
+  private static class Restorer {
+
+    // bytes retrieved, but not written yet
+    private static final int MAX_PENDING_BYTES = 256 << 20;
+    // files found in fetched directories, but not planned yet
+    private static final int MAX_QUEUED_FILES = 16 << 10;
+    // files planned together, which retrieve the blocks they share once
+    private static final int MAX_WINDOW_FILES = 16 << 10;
+    // blocks of earlier windows remembered to be copied from the files they were written to
+    private static final int MAX_RESTORED_BLOCKS = 128 << 10;
+
+    private final BlockStore blockStore;
+    private final ListeningExecutorService workers;
+    private final Semaphore pendingRequests;
+    private final Semaphore pendingBytes = new Semaphore(MAX_PENDING_BYTES);
+
+    // only touched by the thread running restore()
+    private final Queue<PendingDirectory> directoriesToFetch = new ArrayDeque<>();
+    private final Queue<PendingFile> filesToPlan = new ArrayDeque<>();
+    private int directoriesInFlight = 0;
+    // where each block of the current window goes, in the order the blocks were first seen
+    private Iterator<Map.Entry<PersistedBlock, List<Destination>>> window =
+        Collections.emptyIterator();
+    private final Map<PersistedBlock, Destination> restoredBlocks =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<PersistedBlock, Destination> eldest) {
+            return size() > MAX_RESTORED_BLOCKS;
           }
-          fos.close();
-          Files.setLastModifiedTime(
-              tmpFile, FileTime.fromMillis(entry.getFile().getLastModifiedMillis()));
+        };
+    private int fileCount = 0;
+    private long retrievedBlocks = 0;
+    private long copiedBlocks = 0;
 
-          Path actualFile = path.resolve(entry.getFile().getName());
-          Files.move(tmpFile, actualFile);
-          break;
-        case DIRECTORY:
-          Path childPath = path.resolve(entry.getDirectory().getName());
-          Gletscher.Directory childDir =
-              Gletscher.Directory.parseFrom(
-                  Futures.getUnchecked(
-                      blockStore.retrieve(
-                          PersistedBlock.fromProto(entry.getDirectory().getBlock()))));
-          Files.createDirectory(childPath);
-          restoreInner(blockStore, childDir, childPath);
-          break;
-        case SYMLINK:
-          Files.createSymbolicLink(
-              path.resolve(entry.getSymlink().getName()),
-              path.getFileSystem().getPath(entry.getSymlink().getTarget()));
+    private final BlockingQueue<FetchedDirectory> fetchedDirectories = new LinkedBlockingQueue<>();
+    private int unfinishedBlocks = 0; // guarded by this
+    @Nullable private Throwable failure = null; // guarded by this
+
+    /**
+     * Directories are fetched breadth-first, and the files found so far are planned in windows of
+     * up to {@link #MAX_WINDOW_FILES} files, while more directories are being expanded. Planning a
+     * window creates a temp file for each of its files and notes for every block where it needs to
+     * be written. Each distinct block of a window is then retrieved once, no matter how many files
+     * share it, and written to all its offsets on {@code workers} once it arrives. A block already
+     * restored by a recent window is copied from the file it was written to instead. Only the
+     * thread calling {@link #restore} waits for permits, so the number of requests in flight and
+     * the number of bytes waiting to be written stay bounded without ever blocking a worker. A
+     * failed block fails the files it belongs to, and with them the copies waiting for those files,
+     * so the permits always come back and the failure gets reported.
+     */
+    Restorer(BlockStore blockStore, ListeningExecutorService workers, int threadCount) {
+      this.blockStore = blockStore;
+      this.workers = workers;
+      this.pendingRequests = new Semaphore(Math.max(64, 4 * threadCount));
+    }
+
+    void restore(PersistedBlock rootBlock, Path restoreRoot, PrintStream stdout)
+        throws IOException, InterruptedException {
+      directoriesToFetch.add(new PendingDirectory(rootBlock, restoreRoot));
+      while (true) {
+        checkFailure();
+        FetchedDirectory fetched = fetchedDirectories.poll();
+        if (fetched != null) {
+          expand(fetched);
+        } else if (!directoriesToFetch.isEmpty() && filesToPlan.size() < MAX_QUEUED_FILES) {
+          fetch(directoriesToFetch.remove());
+        } else if (window.hasNext()) {
+          Map.Entry<PersistedBlock, List<Destination>> entry = window.next();
+          retrieveAndWrite(entry.getKey(), entry.getValue());
+          window.remove();
+        } else if (!filesToPlan.isEmpty()) {
+          planWindow();
+        } else if (directoriesInFlight > 0) {
+          expand(fetchedDirectories.take());
+        } else {
           break;
-        default:
-          throw new IllegalArgumentException(entry.toString());
+        }
+      }
+      awaitBlocks();
+      stdout.printf(
+          "restored %d files, %d blocks retrieved, %d blocks copied locally\n",
+          fileCount, retrievedBlocks, copiedBlocks);
+    }
+
+    private void fetch(PendingDirectory directory) throws IOException, InterruptedException {
+      acquire(pendingRequests, 1);
+      ListenableFuture<byte[]> contents = blockStore.retrieve(directory.block);
+      releaseWhenDone(contents, pendingRequests, 1);
+      directoriesInFlight++;
+      contents.addListener(
+          () -> fetchedDirectories.add(new FetchedDirectory(directory.path, contents)),
+          MoreExecutors.directExecutor());
+    }
+
+    private void expand(FetchedDirectory fetched) throws IOException {
+      directoriesInFlight--;
+      Gletscher.Directory dir =
+          Gletscher.Directory.parseFrom(Futures.getUnchecked(fetched.contents));
+      for (Gletscher.DirectoryEntry entry : dir.getEntryList()) {
+        switch (entry.getTypeCase()) {
+          case FILE:
+            filesToPlan.add(new PendingFile(entry.getFile(), fetched.path));
+            break;
+          case DIRECTORY:
+            Path childPath = fetched.path.resolve(entry.getDirectory().getName());
+            Files.createDirectory(childPath);
+            directoriesToFetch.add(
+                new PendingDirectory(
+                    PersistedBlock.fromProto(entry.getDirectory().getBlock()), childPath));
+            break;
+          case SYMLINK:
+            Files.createSymbolicLink(
+                fetched.path.resolve(entry.getSymlink().getName()),
+                fetched.path.getFileSystem().getPath(entry.getSymlink().getTarget()));
+            break;
+          default:
+            throw new IllegalArgumentException(entry.toString());
+        }
+      }
+    }
+
+    private void planWindow() throws IOException {
+      Map<PersistedBlock, List<Destination>> destinations = new LinkedHashMap<>();
+      for (int i = 0; i < MAX_WINDOW_FILES && !filesToPlan.isEmpty(); i++) {
+        plan(filesToPlan.remove(), destinations);
+      }
+      window = destinations.entrySet().iterator();
+    }
+
+    private void plan(PendingFile pending, Map<PersistedBlock, List<Destination>> destinations)
+        throws IOException {
+      Gletscher.FileEntry entry = pending.entry;
+      RestoredFile file =
+          new RestoredFile(
+              Files.createTempFile(pending.directory, ".gletscher-", ".tmprestore"),
+              pending.directory.resolve(entry.getName()),
+              entry.getLastModifiedMillis(),
+              entry.getBlockCount());
+      fileCount++;
+      if (entry.getBlockCount() == 0) {
+        file.finish();
+        return;
+      }
+      long offset = 0;
+      for (Gletscher.PersistedBlock proto : entry.getBlockList()) {
+        PersistedBlock block = PersistedBlock.fromProto(proto);
+        destinations
+            .computeIfAbsent(block, b -> new ArrayList<>(1))
+            .add(new Destination(file, offset));
+        offset += block.getOriginalLength();
+      }
+    }
+
+    private void retrieveAndWrite(PersistedBlock block, List<Destination> blockDestinations)
+        throws IOException, InterruptedException {
+      int length = block.getOriginalLength();
+      // a block larger than the limit gets to be on its own
+      int permits = Math.min(length, MAX_PENDING_BYTES);
+      acquire(pendingRequests, 1);
+      acquire(pendingBytes, permits);
+      ListenableFuture<byte[]> data;
+      Destination source = restoredBlocks.get(block);
+      if (source != null) {
+        // all blocks of an earlier window have been scheduled, so the source file gets finished,
+      // or fails along with the first of its blocks that does
+        data =
+            Futures.transformAsync(
+                source.file.restored,
+                ignored -> Futures.immediateFuture(source.read(length)),
+                workers);
+        copiedBlocks++;
+      } else {
+        data = blockStore.retrieve(block);
+        retrievedBlocks++;
+      }
+      restoredBlocks.put(block, blockDestinations.get(0));
+      releaseWhenDone(data, pendingRequests, 1);
+      ListenableFuture<?> written =
+          Futures.transformAsync(
+              data,
+              bytes -> {
+                Preconditions.checkState(
+                    bytes.length == length, "%s: got %s bytes", block, bytes.length);
+                for (Destination destination : blockDestinations) {
+                  destination.write(bytes);
+                }
+                return Futures.immediateVoidFuture();
+              },
+              workers);
+      releaseWhenDone(written, pendingBytes, permits);
+      synchronized (this) {
+        unfinishedBlocks++;
+      }
+      written.addListener(
+          () -> finished(written, blockDestinations), MoreExecutors.directExecutor());
+    }
+
+    private synchronized void finished(
+        ListenableFuture<?> written, List<Destination> blockDestinations) {
+      try {
+        Futures.getDone(written);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+        // copies waiting for these files would otherwise hold on to their permits forever
+        for (Destination destination : blockDestinations) {
+          destination.file.failed(e.getCause());
+        }
+      }
+      unfinishedBlocks--;
+      notifyAll();
+    }
+
+    private synchronized void awaitBlocks() throws IOException, InterruptedException {
+      while (unfinishedBlocks > 0 && failure == null) {
+        wait();
+      }
+      checkFailure();
+    }
+
+    private synchronized void checkFailure() throws IOException {
+      if (failure != null) {
+        Throwables.throwIfInstanceOf(failure, IOException.class);
+        Throwables.throwIfUnchecked(failure);
+        throw new IOException(failure);
+      }
+    }
+
+    /** Waits for {@code permits}, giving up once a block failed so the failure gets reported. */
+    private void acquire(Semaphore semaphore, int permits)
+        throws IOException, InterruptedException {
+      while (!semaphore.tryAcquire(permits, 100, TimeUnit.MILLISECONDS)) {
+        checkFailure();
+      }
+    }
+
+    private static void releaseWhenDone(
+        ListenableFuture<?> future, Semaphore semaphore, int permits) {
+      future.addListener(() -> semaphore.release(permits), MoreExecutors.directExecutor());
+    }
+  }
+
+  /**
+   * A file being restored, which is moved into place once all its blocks have been written. It is
+   * opened when its first block arrives and closed after its last one, or once one of them failed.
+   */
+  private static class RestoredFile {
+    final Path tmpFile;
+    final Path path;
+    final long lastModifiedMillis;
+    private final AtomicInteger remainingBlocks;
+    @Nullable private FileChannel channel; // guarded by this
+    // done once the file is in place, or failed if any of its blocks did
+    final SettableFuture<Void> restored = SettableFuture.create();
+
+    RestoredFile(Path tmpFile, Path path, long lastModifiedMillis, int blockCount) {
+      this.tmpFile = tmpFile;
+      this.path = path;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.remainingBlocks = new AtomicInteger(blockCount);
+    }
+
+    void write(byte[] bytes, long offset) throws IOException {
+      FileChannel channel = channel();
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, offset + buffer.position());
+      }
+      if (remainingBlocks.decrementAndGet() == 0) {
+        finish();
       }
     }
+
+    private synchronized FileChannel channel() throws IOException {
+      if (restored.isDone()) {
+        throw new ClosedChannelException();
+      }
+      if (channel == null) {
+        channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE);
+      }
+      return channel;
+    }
+
+    void finish() throws IOException {
+      try {
+        closeChannel();
+        Files.setLastModifiedTime(tmpFile, FileTime.fromMillis(lastModifiedMillis));
+        Files.move(tmpFile, path);
+      } catch (IOException e) {
+        restored.setException(e);
+        throw e;
+      }
+      restored.set(null);
+    }
+
+    void failed(Throwable cause) {
+      if (restored.setException(cause)) {
+        try {
+          closeChannel();
+        } catch (IOException e) {
+          cause.addSuppressed(e);
+        }
+      }
+    }
+
+    private synchronized void closeChannel() throws IOException {
+      if (channel != null) {
+        channel.close();
+      }
+    }
+  }
+
+  private static class Destination {
+    final RestoredFile file;
+    final long offset;
+
+    Destination(RestoredFile file, long offset) {
+      this.file = file;
+      this.offset = offset;
+    }
+
+    void write(byte[] bytes) throws IOException {
+      file.write(bytes, offset);
+    }
+
+    /** Reads the block back once {@link #file} is in place. */
+    byte[] read(int length) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, offset + buffer.position()) < 0) {
+            throw new EOFException(file.path + " is shorter than expected");
+          }
+        }
+        return buffer.array();
+      }
+    }
+  }
+
+  private static class PendingDirectory {
+    final PersistedBlock block;
+    final Path path;
+
+    PendingDirectory(PersistedBlock block, Path path) {
+      this.block = block;
+      this.path = path;
+    }
+  }
+
+  private static class FetchedDirectory {
+    final Path path;
+    final ListenableFuture<byte[]> contents;
+
+    FetchedDirectory(Path path, ListenableFuture<byte[]> contents) {
+      this.path = path;
+      this.contents = contents;
+    }
+  }
+
+  private static class PendingFile {
+    final Gletscher.FileEntry entry;
+    final Path directory;
+
+    PendingFile(Gletscher.FileEntry entry, Path directory) {
+      this.entry = entry;
+      this.directory = directory;
+    }
   }
 }
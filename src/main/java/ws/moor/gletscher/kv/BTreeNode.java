@@ -18,12 +18,13 @@ package ws.moor.gletscher.kv;
 
 import com.google.common.base.Preconditions;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 // >= always to the right
+// Node as built up by DiskLayerWriter, FlatBTreeNode is what gets read back.
 final class BTreeNode {
   private static final int MAX_NODE_SIZE = 32 << 10;
 
@@ -32,6 +33,10 @@ final class BTreeNode {
   final boolean isLeaf;
 
   private int serializedSize;
+  // upper bound of the size of serializeCompact, the entry count taken as five bytes
+  private int compactSize;
+  private byte[] lastKeyBytes = new byte[0];
+  private long lastLocationEnd = 0;
 
   BTreeNode(List<Key> keys, List<BlockLocation> locations) {
     this.keys = keys;
@@ -50,36 +55,69 @@ final class BTreeNode {
     for (BlockLocation location : locations) {
       serializedSize += location.serializedSize();
     }
+
+    compactSize = 5;
+    for (Key key : keys) {
+      addCompactKey(key);
+    }
+    for (BlockLocation location : locations) {
+      addCompactLocation(location);
+    }
   }
 
   public int size() {
     return keys.size();
   }
 
-  int cacheMemoryUsage() {
-    return serializedSize + keys.size() * 32;
+  /**
+   * Returns whether {@code key} and {@code location} can be added without the node outgrowing its
+   * maximum size, measured in the compact format if {@code compact} and in the fixed width one
+   * otherwise.
+   */
+  boolean fits(Key key, BlockLocation location, boolean compact) {
+    int newSize =
+        compact
+            ? compactSize + compactKeySize(key) + compactLocationSize(location)
+            : serializedSize + key.serializedSize() + location.serializedSize();
+    return size() < 2 || newSize <= MAX_NODE_SIZE;
+  }
+
+  private int compactKeySize(Key key) {
+    byte[] bytes = key.toByteArray();
+    int shared = sharedPrefixLength(lastKeyBytes, bytes);
+    int remaining = bytes.length - shared;
+    return VarInts.size(shared) + VarInts.size(key.isNormal() ? remaining + 1 : 0) + remaining;
   }
 
-  boolean fits(Key key) {
-    if (size() >= 2 && serializedSize + key.serializedSize() + 13 > MAX_NODE_SIZE) {
-      return false;
+  private int compactLocationSize(BlockLocation location) {
+    if (location.type == BlockLocation.Type.DELETION) {
+      return 1;
     }
-    return true;
+    return 1
+        + VarInts.size(VarInts.zigZag(location.offset - lastLocationEnd))
+        + VarInts.size(location.size)
+        + (location.type == BlockLocation.Type.BLOB ? VarInts.size(location.blobFile) : 0);
   }
 
-  static BTreeNode parseFrom(DiskLayer layer, ByteBuffer data) {
-    int size = data.getInt();
+  private void addCompactKey(Key key) {
+    compactSize += compactKeySize(key);
+    lastKeyBytes = key.toByteArray();
+  }
 
-    List<Key> keys = new ArrayList<>(size);
-    for (int i = 0; i < size; i++) {
-      keys.add(Key.parseFrom(data));
-    }
-    List<BlockLocation> locations = new ArrayList<>(size);
-    for (int i = 0; i < size; i++) {
-      locations.add(BlockLocation.parseFrom(layer, data));
+  private void addCompactLocation(BlockLocation location) {
+    compactSize += compactLocationSize(location);
+    if (location.type != BlockLocation.Type.DELETION) {
+      lastLocationEnd = location.offset + location.size;
     }
+  }
 
-    return new BTreeNode(keys, locations);
+  private static int sharedPrefixLength(byte[] a, byte[] b) {
+    int shared = 0;
+    int max = Math.min(a.length, b.length);
+    while (shared < max && a[shared] == b[shared]) {
+      shared++;
+    }
+    return shared;
   }
 
   public ByteBuffer serialize() {
@@ -95,22 +133,39 @@ final class BTreeNode {
     return buffer;
   }
 
-  int findKeyIndex(Key key) {
-    int index = Collections.binarySearch(keys, key);
-    if (isLeaf) {
-      return index;
-    } else if (index < 0) {
-      // inner
-      int firstGreaterThan = -index - 1;
-      return firstGreaterThan - 1;
-    } else {
-      return index;
+  /**
+   * Serializes into the compact format of version 4 layers: a varint entry count, the keys front
+   * coded as the length of the prefix shared with the previous key, the remaining length plus one
+   * (zero for the minimum key) and the remaining bytes, followed by the locations as their type,
+   * the distance of their offset from the end of the previous one and their size, all varints.
+   */
+  byte[] serializeCompact() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(compactSize);
+    VarInts.write(out, size());
+    byte[] previous = new byte[0];
+    for (Key key : keys) {
+      Preconditions.checkState(key.isNormal() || key.equals(Key.MIN), "can't store %s", key);
+      byte[] bytes = key.toByteArray();
+      int shared = sharedPrefixLength(previous, bytes);
+      VarInts.write(out, shared);
+      VarInts.write(out, key.isNormal() ? bytes.length - shared + 1 : 0);
+      out.write(bytes, shared, bytes.length - shared);
+      previous = bytes;
     }
-  }
-
-  BlockLocation findKey(Key key) {
-    int index = findKeyIndex(key);
-    return index < 0 ? null : locations.get(index);
+    long previousEnd = 0;
+    for (BlockLocation location : locations) {
+      out.write(location.type.ordinal());
+      if (location.type == BlockLocation.Type.DELETION) {
+        continue;
+      }
+      VarInts.write(out, VarInts.zigZag(location.offset - previousEnd));
+      VarInts.write(out, location.size);
+      if (location.type == BlockLocation.Type.BLOB) {
+        VarInts.write(out, location.blobFile);
+      }
+      previousEnd = location.offset + location.size;
+    }
+    return out.toByteArray();
   }
 
   static BTreeNode newEmptyInnerNode() {
@@ -128,17 +183,21 @@ final class BTreeNode {
     keys.add(key);
     locations.add(location);
     serializedSize += key.serializedSize() + location.serializedSize();
+    addCompactKey(key);
+    addCompactLocation(location);
   }
 
   void addInnerKey(Key key) {
     Preconditions.checkState(!isLeaf);
     keys.add(key);
     serializedSize += key.serializedSize();
+    addCompactKey(key);
   }
 
   void addInnerChild(BlockLocation location) {
     Preconditions.checkState(!isLeaf);
     locations.add(location);
     serializedSize += location.serializedSize();
+    addCompactLocation(location);
   }
 }
@@ -21,11 +21,14 @@ import com.google.common.base.Preconditions;
 import java.nio.ByteBuffer;
 
 final class BlockLocation implements Layer.KeyInfo {
+  static final int MAX_SERIALIZED_SIZE = 17;
+
   static BlockLocation parseFrom(DiskLayer layer, ByteBuffer data) {
     Type type = Type.values()[data.get()];
     long offset = data.getLong();
     int size = data.getInt();
-    return new BlockLocation(type, layer, offset, size);
+    int blobFile = type == Type.BLOB ? data.getInt() : 0;
+    return new BlockLocation(type, layer, blobFile, offset, size);
   }
 
   ByteBuffer serialize() {
@@ -36,13 +39,16 @@ final class BlockLocation implements Layer.KeyInfo {
   }
 
   int serializedSize() {
-    return 13;
+    return type == Type.BLOB ? 17 : 13;
   }
 
   void writeTo(ByteBuffer buffer) {
     buffer.put(type.value);
     buffer.putLong(offset);
     buffer.putInt(size);
+    if (type == Type.BLOB) {
+      buffer.putInt(blobFile);
+    }
   }
 
   @Override
@@ -64,7 +70,9 @@ final class BlockLocation implements Layer.KeyInfo {
   enum Type {
     NODE(0),
     VALUE(1),
-    DELETION(2);
+    DELETION(2),
+    // value stored in a value log file
+    BLOB(3);
 
     private final byte value;
 
@@ -75,12 +83,18 @@ final class BlockLocation implements Layer.KeyInfo {
 
   final Type type;
   final DiskLayer layer;
+  final int blobFile;
   final long offset;
   final int size;
 
   BlockLocation(Type type, DiskLayer layer, long offset, int size) {
+    this(type, layer, 0, offset, size);
+  }
+
+  BlockLocation(Type type, DiskLayer layer, int blobFile, long offset, int size) {
     this.type = type;
     this.layer = layer;
+    this.blobFile = blobFile;
     this.offset = offset;
     this.size = size;
   }
@@ -96,7 +110,8 @@ final class BlockLocation implements Layer.KeyInfo {
     return this.offset == other.offset
         && this.size == other.size
         && this.layer == other.layer
-        && this.type == other.type;
+        && this.type == other.type
+        && this.blobFile == other.blobFile;
   }
 
   @Override
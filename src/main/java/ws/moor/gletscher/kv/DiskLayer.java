@@ -21,9 +21,16 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.Weigher;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import ws.moor.gletscher.util.Compressor;
 
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -31,52 +38,154 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class DiskLayer extends Layer {
 
+  // Files are mapped in segments of this size, each overlapping the next by MAPPING_OVERLAP so that
+  // values up to that size can always be served from a single mapping.
+  static final long MAPPING_SIZE = 1 << 30;
+  private static final long MAPPING_OVERLAP = 64 << 20;
+
+  // layers taking over the keys of others by compaction keep their id, but get a new file
+  final int fileNumber;
   private final Path path;
+  private final long mappingSize;
+  @Nullable private final ValueLog valueLog;
   private FileChannel channel;
+  private long size;
+  @Nullable private MappedByteBuffer[] mappings;
+  private long version;
   private BlockLocation rootNodeLocation;
+  @Nullable private Key firstKey;
+  @Nullable private Key lastKey;
+  // absent in version 1 files
+  @Nullable private BloomFilter<Long> bloomFilter;
+  // bytes referenced per value log file
+  private ImmutableMap<Integer, Long> blobReferences = ImmutableMap.of();
+  private volatile boolean deleteOnClose = false;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  private static final Compressor compressor = new Compressor();
 
-  private static final Cache<BlockLocation, BTreeNode> nodeCache =
+  private static final Cache<BlockLocation, FlatBTreeNode> nodeCache =
       CacheBuilder.newBuilder()
           .weigher(
-              (Weigher<BlockLocation, BTreeNode>) (location, node) -> 32 + node.cacheMemoryUsage())
+              (Weigher<BlockLocation, FlatBTreeNode>)
+                  (location, node) -> 32 + node.cacheMemoryUsage())
           .maximumWeight(64 << 20)
           .build();
 
-  DiskLayer(Path path) {
-    super(Integer.valueOf(path.getFileName().toString().substring("data-".length()), 10));
+  DiskLayer(Path path, long mappingSize, @Nullable ValueLog valueLog) {
+    this(fileNumber(path), path, mappingSize, valueLog);
+  }
+
+  DiskLayer(int id, Path path, long mappingSize, @Nullable ValueLog valueLog) {
+    super(id);
     Preconditions.checkState(Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS));
     Preconditions.checkState(Files.isReadable(path));
+    this.fileNumber = fileNumber(path);
     this.path = path;
+    this.mappingSize = mappingSize;
+    this.valueLog = valueLog;
+  }
+
+  static int fileNumber(Path path) {
+    return Integer.parseInt(path.getFileName().toString().substring("data-".length()), 10);
   }
 
   void open() throws KVStoreException {
+    openFile();
+    Iterator<KeyEntry> first = keyIterator(Key.MIN, true, true);
+    if (first.hasNext()) {
+      firstKey = first.next().getKey();
+      lastKey = keyIterator(Key.MAX, true, false).next().getKey();
+    }
+  }
+
+  /** Opens the layer with the key range recorded in the manifest, without looking it up. */
+  void open(@Nullable Key firstKey, @Nullable Key lastKey) throws KVStoreException {
+    openFile();
+    this.firstKey = firstKey;
+    this.lastKey = lastKey;
+  }
+
+  private void openFile() throws KVStoreException {
     try {
       channel = FileChannel.open(path, StandardOpenOption.READ);
+      size = channel.size();
+      if (mappingSize > 0) {
+        mappings = map(channel, mappingSize);
+      }
 
-      ByteBuffer version = KVStoreImpl.readFromChannel(channel, 0, 8);
-      long versionLong = version.getLong();
+      version = read(0, 8).getLong();
       Preconditions.checkArgument(
-          versionLong == DiskLayerWriter.CURRENT_VERSION, "invalid version: %s", versionLong);
+          version >= 1 && version <= DiskLayerWriter.CURRENT_VERSION,
+          "invalid version: %s",
+          version);
 
-      ByteBuffer buffer = KVStoreImpl.readFromChannel(channel, channel.size() - 4, 4);
+      ByteBuffer buffer = read(size - 4, 4);
       int length = buffer.getInt();
 
-      buffer = KVStoreImpl.readFromChannel(channel, channel.size() - 4 - length, length);
+      buffer = read(size - 4 - length, length);
       rootNodeLocation = BlockLocation.parseFrom(this, buffer);
+      if (version >= 2) {
+        BlockLocation bloomFilterLocation = BlockLocation.parseFrom(this, buffer);
+        byte[] serialized = KVStoreImpl.toByteArray(read(bloomFilterLocation));
+        bloomFilter =
+            BloomFilter.readFrom(new ByteArrayInputStream(serialized), Funnels.longFunnel());
+      }
+      if (version >= 3) {
+        ImmutableMap.Builder<Integer, Long> references = ImmutableMap.builder();
+        for (int i = buffer.getInt(); i > 0; i--) {
+          references.put(buffer.getInt(), buffer.getLong());
+        }
+        blobReferences = references.build();
+        Preconditions.checkState(
+            blobReferences.isEmpty() || valueLog != null, "%s needs a value log", path);
+      }
     } catch (IOException e) {
       throw new KVStoreException(e);
     }
   }
 
+  @Nullable
+  private static MappedByteBuffer[] map(FileChannel channel, long mappingSize)
+      throws IOException {
+    long size = channel.size();
+    int count = (int) Math.max(1, (size + mappingSize - 1) / mappingSize);
+    MappedByteBuffer[] mappings = new MappedByteBuffer[count];
+    try {
+      for (int i = 0; i < count; i++) {
+        long start = i * mappingSize;
+        long length = Math.min(size - start, mappingSize + MAPPING_OVERLAP);
+        mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      }
+    } catch (UnsupportedOperationException e) {
+      return null;
+    }
+    return mappings;
+  }
+
+  /** Makes {@link #close} delete the file, once the layer has been compacted into another one. */
+  void deleteOnClose() {
+    deleteOnClose = true;
+  }
+
   void close() throws KVStoreException {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    // mappings stay valid until they are garbage collected, even for buffers handed out earlier
+    mappings = null;
     try {
       channel.close();
     } catch (IOException e) {
       throw new KVStoreException(e);
     }
+    if (deleteOnClose) {
+      delete();
+    }
   }
 
   void delete() throws KVStoreException {
@@ -92,7 +201,22 @@ class DiskLayer extends Layer {
     Preconditions.checkArgument(keyInfo instanceof BlockLocation);
     BlockLocation location = (BlockLocation) keyInfo;
     Preconditions.checkState(location.layer == this);
-    return KVStoreImpl.readFromChannel(channel, location.offset, location.size);
+    if (location.type == BlockLocation.Type.BLOB) {
+      return valueLog.read(location.blobFile, location.offset, location.size);
+    }
+    return read(location.offset, location.size);
+  }
+
+  private ByteBuffer read(long offset, int size) throws KVStoreException {
+    MappedByteBuffer[] mappings = this.mappings;
+    if (mappings != null) {
+      MappedByteBuffer mapping = mappings[(int) (offset / mappingSize)];
+      int start = (int) (offset % mappingSize);
+      if (start + size <= mapping.capacity()) {
+        return mapping.slice(start, size);
+      }
+    }
+    return KVStoreImpl.readFromChannel(channel, offset, size);
   }
 
   @Override
@@ -122,7 +246,7 @@ class DiskLayer extends Layer {
               element.nextPos =
                   ascending ? index + 1 : index - 1; // we're going down @index right now
               // descend
-              StackElement child = new StackElement(readNode(element.node.locations.get(index)));
+              StackElement child = new StackElement(readNode(element.node.location(index)));
               nodeStack.push(child);
               element = child;
             }
@@ -141,8 +265,7 @@ class DiskLayer extends Layer {
         }
 
         if (top.node.isLeaf) {
-          KeyEntry entry =
-              new KeyEntry(top.node.keys.get(top.nextPos), top.node.locations.get(top.nextPos));
+          KeyEntry entry = new KeyEntry(top.node.key(top.nextPos), top.node.location(top.nextPos));
           if (ascending) {
             top.nextPos++;
           } else {
@@ -150,7 +273,7 @@ class DiskLayer extends Layer {
           }
           return entry;
         } else {
-          BTreeNode child = readNode(top.node.locations.get(top.nextPos));
+          FlatBTreeNode child = readNode(top.node.location(top.nextPos));
           if (ascending) {
             top.nextPos++;
           } else {
@@ -165,19 +288,23 @@ class DiskLayer extends Layer {
     };
   }
 
-  long size() throws KVStoreException {
-    try {
-      return channel.size();
-    } catch (IOException e) {
-      throw new KVStoreException(e);
-    }
+  ImmutableMap<Integer, Long> getBlobReferences() {
+    return blobReferences;
+  }
+
+  boolean hasBloomFilter() {
+    return bloomFilter != null;
+  }
+
+  long size() {
+    return size;
   }
 
   private class StackElement {
-    private final BTreeNode node;
+    private final FlatBTreeNode node;
     private int nextPos;
 
-    private StackElement(BTreeNode node) {
+    private StackElement(FlatBTreeNode node) {
       this.node = node;
       this.nextPos = 0;
     }
@@ -185,7 +312,10 @@ class DiskLayer extends Layer {
 
   @Override
   BlockLocation find(Key key) throws KVStoreException {
-    BTreeNode node = readNode(rootNodeLocation);
+    if (bloomFilter != null && !bloomFilter.mightContain(DiskLayerWriter.hashKey(key))) {
+      return null;
+    }
+    FlatBTreeNode node = readNode(rootNodeLocation);
     while (true) {
       BlockLocation location = node.findKey(key);
       if (location == null || location.type != BlockLocation.Type.NODE) {
@@ -195,12 +325,61 @@ class DiskLayer extends Layer {
     }
   }
 
-  private BTreeNode readNode(BlockLocation location) throws KVStoreException {
+  @Override
+  void findAll(Key[] keys, KeyInfo[] results) throws KVStoreException {
+    findAll(readNode(rootNodeLocation), keys, results, 0, keys.length);
+  }
+
+  // descends into each child once for all the keys it covers
+  private void findAll(FlatBTreeNode node, Key[] keys, KeyInfo[] results, int from, int to)
+      throws KVStoreException {
+    int i = from;
+    while (i < to) {
+      if (results[i] != null
+          || bloomFilter != null && !bloomFilter.mightContain(DiskLayerWriter.hashKey(keys[i]))) {
+        i++;
+        continue;
+      }
+      int index = node.findKeyIndex(keys[i]);
+      if (node.isLeaf) {
+        if (index >= 0) {
+          results[i] = node.location(index);
+        }
+        i++;
+      } else {
+        int end = i + 1;
+        while (end < to && (index + 1 >= node.size() || node.compareTo(keys[end], index + 1) < 0)) {
+          end++;
+        }
+        findAll(readNode(node.location(index)), keys, results, i, end);
+        i = end;
+      }
+    }
+  }
+
+  @Override
+  @Nullable
+  Key firstKey() {
+    return firstKey;
+  }
+
+  @Override
+  @Nullable
+  Key lastKey() {
+    return lastKey;
+  }
+
+  private FlatBTreeNode readNode(BlockLocation location) throws KVStoreException {
     Preconditions.checkArgument(location.type == BlockLocation.Type.NODE);
-    BTreeNode node = nodeCache.getIfPresent(location);
+    FlatBTreeNode node = nodeCache.getIfPresent(location);
     if (node == null) {
       ByteBuffer data = read(location);
-      node = BTreeNode.parseFrom(location.layer, data);
+      if (version >= 4) {
+        byte[] compact = compressor.decompress(KVStoreImpl.toByteArray(data));
+        node = FlatBTreeNode.parseCompactFrom(location.layer, ByteBuffer.wrap(compact));
+      } else {
+        node = FlatBTreeNode.parseFrom(location.layer, data);
+      }
       nodeCache.put(location, node);
     }
     return node;
@@ -21,55 +21,110 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeMap;
 import com.google.common.collect.TreeRangeMap;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import ws.moor.gletscher.util.Compressor;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class DiskLayerWriter {
 
-  static final long CURRENT_VERSION = 1;
+  // version 2 adds a Bloom filter over all keys, located in the footer after the root node
+  // version 3 adds value log references, the footer ending in the bytes referenced per file
+  // version 4 stores nodes front coded with varints (BTreeNode#serializeCompact), behind the
+  // Compressor's scheme byte
+  static final long CURRENT_VERSION = 4;
+  static final double BLOOM_FILTER_FPP = 0.01;
+
+  private static final Compressor compressor = new Compressor();
 
   private final FileChannel out;
+  private final long version;
+  private final boolean compressNodes;
+  // hashes of all keys written, for the Bloom filter
+  private long[] keyHashes = new long[1024];
+  private int keyCount = 0;
+  private final Map<Integer, Long> blobReferences = new TreeMap<>();
 
   private Key lastKey = Key.MIN;
   private RangeMap<Key, BlockLocation> nodes = TreeRangeMap.create();
   private BTreeNode leafNode = BTreeNode.newEmptyLeafNode();
 
   DiskLayerWriter(FileChannel out) throws IOException {
+    this(out, CURRENT_VERSION, false);
+  }
+
+  DiskLayerWriter(FileChannel out, long version, boolean compressNodes) throws IOException {
+    Preconditions.checkArgument(
+        version >= 1 && version <= CURRENT_VERSION, "unsupported version: %s", version);
+    Preconditions.checkArgument(
+        !compressNodes || version >= 4, "version %s can't compress nodes", version);
     this.out = out;
+    this.version = version;
+    this.compressNodes = compressNodes;
     writeHeader();
   }
 
   private void writeHeader() throws IOException {
     ByteBuffer version = ByteBuffer.allocate(8);
-    version.putLong(CURRENT_VERSION);
+    version.putLong(this.version);
     version.rewind();
     appendRaw(version);
   }
 
   void write(Key key, @Nullable ByteBuffer data) throws IOException {
+    BlockLocation location;
+    if (data == null) {
+      location = new BlockLocation(BlockLocation.Type.DELETION, null, -1, -1);
+    } else {
+      location = append(BlockLocation.Type.VALUE, data);
+    }
+    addLeafEntry(key, location);
+  }
+
+  /** Writes a reference to a value already stored in the value log. */
+  void writeBlobReference(Key key, BlockLocation location) throws IOException {
+    Preconditions.checkArgument(location.type == BlockLocation.Type.BLOB);
+    Preconditions.checkState(version >= 3, "version %s can't reference blobs", version);
+    addLeafEntry(
+        key,
+        new BlockLocation(
+            location.type, null, location.blobFile, location.offset, location.size));
+    blobReferences.merge(location.blobFile, (long) location.size, Long::sum);
+  }
+
+  private void addLeafEntry(Key key, BlockLocation location) throws IOException {
     Preconditions.checkArgument(lastKey.compareTo(key) < 0);
+    lastKey = key;
 
-    if (!leafNode.fits(key)) {
-      ByteBuffer buffer = leafNode.serialize();
+    if (!leafNode.fits(key, location, version >= 4)) {
+      ByteBuffer buffer = serialize(leafNode);
       BlockLocation leafLocation = append(BlockLocation.Type.NODE, buffer);
       nodes.put(toRange(leafNode), leafLocation);
       leafNode = BTreeNode.newEmptyLeafNode();
     }
+    leafNode.addLeafEntry(key, location);
 
-    BlockLocation location;
-    if (data == null) {
-      location = new BlockLocation(BlockLocation.Type.DELETION, null, -1, -1);
-    } else {
-      location = append(BlockLocation.Type.VALUE, data);
+    if (keyCount == keyHashes.length) {
+      keyHashes = Arrays.copyOf(keyHashes, keyCount * 2);
     }
-    leafNode.addLeafEntry(key, location);
+    keyHashes[keyCount++] = hashKey(key);
+  }
+
+  static long hashKey(Key key) {
+    return Hashing.murmur3_128().hashBytes(key.toByteArray()).asLong();
   }
 
   void finish() throws IOException {
-    ByteBuffer buffer = leafNode.serialize();
+    ByteBuffer buffer = serialize(leafNode);
     BlockLocation leafLocation = append(BlockLocation.Type.NODE, buffer);
     nodes.put(toRange(leafNode), leafLocation);
     // Done with all leafs
@@ -80,16 +135,46 @@ public class DiskLayerWriter {
 
     BlockLocation lastNodeAddress = Iterables.getOnlyElement(nodes.asMapOfRanges().values());
 
-    ByteBuffer locationBuffer = lastNodeAddress.serialize();
-    appendRaw(locationBuffer);
-    locationBuffer.rewind();
+    ByteBuffer footer;
+    if (version >= 2) {
+      BlockLocation bloomFilterAddress = append(BlockLocation.Type.VALUE, serializeBloomFilter());
+      footer =
+          ByteBuffer.allocate(
+              lastNodeAddress.serializedSize() * 2
+                  + (version >= 3 ? 4 + 12 * blobReferences.size() : 0));
+      lastNodeAddress.writeTo(footer);
+      bloomFilterAddress.writeTo(footer);
+      if (version >= 3) {
+        footer.putInt(blobReferences.size());
+        for (Map.Entry<Integer, Long> entry : blobReferences.entrySet()) {
+          footer.putInt(entry.getKey());
+          footer.putLong(entry.getValue());
+        }
+      }
+      footer.flip();
+    } else {
+      footer = lastNodeAddress.serialize();
+    }
+    int footerSize = footer.remaining();
+    appendRaw(footer);
 
     buffer = ByteBuffer.allocate(4);
-    buffer.putInt(locationBuffer.remaining());
+    buffer.putInt(footerSize);
     buffer.rewind();
     appendRaw(buffer);
   }
 
+  private ByteBuffer serializeBloomFilter() throws IOException {
+    BloomFilter<Long> bloomFilter =
+        BloomFilter.create(Funnels.longFunnel(), Math.max(1, keyCount), BLOOM_FILTER_FPP);
+    for (int i = 0; i < keyCount; i++) {
+      bloomFilter.put(keyHashes[i]);
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    bloomFilter.writeTo(baos);
+    return ByteBuffer.wrap(baos.toByteArray());
+  }
+
   private RangeMap<Key, BlockLocation> rollUp(RangeMap<Key, BlockLocation> nodes)
       throws IOException {
     RangeMap<Key, BlockLocation> nextLevelNodes = TreeRangeMap.create();
@@ -101,10 +186,11 @@ public class DiskLayerWriter {
         first = range;
       }
 
+      BlockLocation child = nodes.get(range.lowerEndpoint());
       if (last != null) {
         Key between = last.upperEndpoint().findBetween(range.lowerEndpoint());
-        if (!innerNode.fits(between)) {
-          ByteBuffer buffer = innerNode.serialize();
+        if (!innerNode.fits(between, child, version >= 4)) {
+          ByteBuffer buffer = serialize(innerNode);
           BlockLocation innerLocation = append(BlockLocation.Type.NODE, buffer);
           nextLevelNodes.put(first.span(last), innerLocation);
 
@@ -115,16 +201,25 @@ public class DiskLayerWriter {
         }
       }
 
-      innerNode.addInnerChild(nodes.get(range.lowerEndpoint()));
+      innerNode.addInnerChild(child);
       last = range;
     }
 
-    ByteBuffer buffer = innerNode.serialize();
+    ByteBuffer buffer = serialize(innerNode);
     BlockLocation innerLocation = append(BlockLocation.Type.NODE, buffer);
     nextLevelNodes.put(first.span(last), innerLocation);
     return nextLevelNodes;
   }
 
+  private ByteBuffer serialize(BTreeNode node) {
+    if (version < 4) {
+      return node.serialize();
+    }
+    byte[] compact = node.serializeCompact();
+    return ByteBuffer.wrap(
+        compressNodes ? compressor.compress(compact) : compressor.uncompressed(compact));
+  }
+
   private Range<Key> toRange(BTreeNode leafNode) {
     Key min = leafNode.keys.get(0);
     Key max = leafNode.keys.get(leafNode.keys.size() - 1);
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only B-tree node as held by the node cache, searched in place in its serialized form.
+ *
+ * <p>Keeps a single copy of the node's bytes plus the offsets of each key and location in them,
+ * instead of a {@link Key} and {@link BlockLocation} per entry like {@link BTreeNode}. Locating a
+ * key thus doesn't allocate anything but the returned location.
+ */
+final class FlatBTreeNode {
+  @Nullable private final DiskLayer layer;
+  private final byte[] data;
+  // offsets of the keys, followed by the offsets of the locations
+  private final int[] offsets;
+  private final int size;
+  final boolean isLeaf;
+
+  private FlatBTreeNode(@Nullable DiskLayer layer, byte[] data, int[] offsets, int size) {
+    this.layer = layer;
+    this.data = data;
+    this.offsets = offsets;
+    this.size = size;
+    // inner node always has the minimum key first
+    this.isLeaf = size == 0 || getInt(offsets[0]) != 0;
+  }
+
+  static FlatBTreeNode parseFrom(@Nullable DiskLayer layer, ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return fromBytes(layer, data);
+  }
+
+  /** Expands a node in the format of {@link BTreeNode#serializeCompact}. */
+  static FlatBTreeNode parseCompactFrom(@Nullable DiskLayer layer, ByteBuffer buffer) {
+    int size = VarInts.readInt(buffer);
+    ByteArrayDataOutput out = ByteStreams.newDataOutput(4 + size * (16 + 13));
+    out.writeInt(size);
+    byte[] previous = new byte[0];
+    for (int i = 0; i < size; i++) {
+      int shared = VarInts.readInt(buffer);
+      int remaining = VarInts.readInt(buffer) - 1;
+      if (remaining < 0) {
+        out.writeInt(0);
+        previous = new byte[0];
+        continue;
+      }
+      byte[] key = Arrays.copyOf(previous, shared + remaining);
+      buffer.get(key, shared, remaining);
+      out.writeInt(key.length);
+      out.write(key);
+      previous = key;
+    }
+    long previousEnd = 0;
+    for (int i = 0; i < size; i++) {
+      BlockLocation.Type type = BlockLocation.Type.values()[buffer.get()];
+      out.writeByte(type.ordinal());
+      if (type == BlockLocation.Type.DELETION) {
+        out.writeLong(-1);
+        out.writeInt(-1);
+        continue;
+      }
+      long offset = previousEnd + VarInts.unZigZag(VarInts.read(buffer));
+      int locationSize = VarInts.readInt(buffer);
+      out.writeLong(offset);
+      out.writeInt(locationSize);
+      if (type == BlockLocation.Type.BLOB) {
+        out.writeInt(VarInts.readInt(buffer));
+      }
+      previousEnd = offset + locationSize;
+    }
+    Preconditions.checkState(!buffer.hasRemaining(), "corrupt node");
+    return fromBytes(layer, out.toByteArray());
+  }
+
+  private static FlatBTreeNode fromBytes(@Nullable DiskLayer layer, byte[] data) {
+    int size = getInt(data, 0);
+    int[] offsets = new int[2 * size];
+    int position = 4;
+    for (int i = 0; i < size; i++) {
+      offsets[i] = position;
+      int length = getInt(data, position);
+      position += 4 + Math.max(length, 0);
+    }
+    for (int i = 0; i < size; i++) {
+      offsets[size + i] = position;
+      position += data[position] == BlockLocation.Type.BLOB.ordinal() ? 17 : 13;
+    }
+    Preconditions.checkState(position == data.length, "corrupt node");
+    return new FlatBTreeNode(layer, data, offsets, size);
+  }
+
+  int size() {
+    return size;
+  }
+
+  int cacheMemoryUsage() {
+    return 64 + data.length + 4 * offsets.length;
+  }
+
+  Key key(int index) {
+    Preconditions.checkElementIndex(index, size);
+    return Key.parseFrom(ByteBuffer.wrap(data, offsets[index], data.length - offsets[index]));
+  }
+
+  BlockLocation location(int index) {
+    Preconditions.checkElementIndex(index, size);
+    int offset = offsets[size + index];
+    BlockLocation.Type type = BlockLocation.Type.values()[data[offset]];
+    return new BlockLocation(
+        type,
+        layer,
+        type == BlockLocation.Type.BLOB ? getInt(offset + 13) : 0,
+        getLong(offset + 1),
+        getInt(offset + 9));
+  }
+
+  /**
+   * Returns the index of the entry for {@code key} in a leaf, or {@code -(insertion point) - 1} if
+   * there is none. In an inner node, returns the index of the child whose range covers it.
+   */
+  int findKeyIndex(Key key) {
+    int low = 0;
+    int high = size - 1;
+    int index = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = key.compareToSerialized(data, offsets[mid]);
+      if (cmp > 0) {
+        low = mid + 1;
+      } else if (cmp < 0) {
+        high = mid - 1;
+      } else {
+        index = mid;
+        break;
+      }
+    }
+    if (index < 0) {
+      index = -(low + 1);
+    }
+
+    if (isLeaf) {
+      return index;
+    } else if (index < 0) {
+      int firstGreaterThan = -index - 1;
+      return firstGreaterThan - 1;
+    } else {
+      return index;
+    }
+  }
+
+  /** Compares {@code key} against the key at {@code index}, without deserializing the latter. */
+  int compareTo(Key key, int index) {
+    Preconditions.checkElementIndex(index, size);
+    return key.compareToSerialized(data, offsets[index]);
+  }
+
+  @Nullable
+  BlockLocation findKey(Key key) {
+    int index = findKeyIndex(key);
+    return index < 0 ? null : location(index);
+  }
+
+  private int getInt(int offset) {
+    return getInt(data, offset);
+  }
+
+  private long getLong(int offset) {
+    return Longs.fromBytes(
+        data[offset],
+        data[offset + 1],
+        data[offset + 2],
+        data[offset + 3],
+        data[offset + 4],
+        data[offset + 5],
+        data[offset + 6],
+        data[offset + 7]);
+  }
+
+  private static int getInt(byte[] data, int offset) {
+    return Ints.fromBytes(data[offset], data[offset + 1], data[offset + 2], data[offset + 3]);
+  }
+}
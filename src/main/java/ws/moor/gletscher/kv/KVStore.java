@@ -17,7 +17,10 @@
 package ws.moor.gletscher.kv;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
 public interface KVStore extends AutoCloseable {
 
@@ -26,6 +29,19 @@ public interface KVStore extends AutoCloseable {
   @Nullable
   byte[] get(Key key) throws KVStoreException;
 
+  /**
+   * Returns a read-only view of the value stored under {@code key}, without copying it. The buffer
+   * may be backed by a memory mapping and must not be used after the store has been closed.
+   */
+  @Nullable
+  ByteBuffer getBuffer(Key key) throws KVStoreException;
+
+  /**
+   * Looks up all {@code keys} at once, visiting each layer's index only once for the whole batch.
+   * Returns the values of the keys present, in key order.
+   */
+  Map<Key, byte[]> multiGet(Collection<Key> keys) throws KVStoreException;
+
   boolean contains(Key key) throws KVStoreException;
 
   void delete(Key key) throws KVStoreException;
@@ -37,6 +53,22 @@ public interface KVStore extends AutoCloseable {
 
   Iterator<Entry> iterator(Key start, boolean inclusive, boolean ascending);
 
+  /**
+   * Iterates over the keys from {@code start} up to but excluding {@code end}, in ascending order.
+   * Layers not holding any keys in that range aren't looked at.
+   */
+  Scan scan(Key start, Key end);
+
+  /**
+   * An iterator over a snapshot of the store. The snapshot keeps the files it reads from around,
+   * even if they get compacted away in the meantime, until the scan is closed or garbage collected.
+   */
+  interface Scan extends Iterator<Entry>, AutoCloseable {
+    /** Releases the snapshot. Entries returned so far must not be read afterwards. */
+    @Override
+    void close();
+  }
+
   interface Entry {
     Key getKey();
 
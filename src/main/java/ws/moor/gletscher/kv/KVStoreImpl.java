@@ -18,40 +18,106 @@ package ws.moor.gletscher.kv;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.AbstractIterator;
-
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+/**
+ * Log-structured store made of an in-memory layer on top of immutable on-disk layers.
+ *
+ * <p>Readers never lock: they work off a reference-counted snapshot of the layer list, which is
+ * replaced as a whole whenever layers are added, flushed or compacted. Layers dropped from the list
+ * are closed once the last snapshot using them is released. Writers serialize on the store's
+ * monitor.
+ *
+ * <p>Writes to a memory layer are also appended to its write-ahead log {@code wal-NNNNNN}, which is
+ * removed once the layer has been flushed to {@code data-NNNNNN}. Logs left behind by a crash are
+ * replayed and flushed when the store is opened.
+ *
+ * <p>The disk layers in use are recorded in the {@link Manifest}. Flushes and compactions write
+ * their output to a new {@code data-NNNNNN} file and only then record the edit swapping it in, so
+ * that files left behind by a crash are recognized and deleted when the store is opened.
+ *
+ * <p>Values of at least {@link KVStoreOptions#blobThreshold} bytes are moved to the {@link
+ * ValueLog} when their layer is written to disk, so compactions only copy references to them.
+ * Value log files that have become mostly garbage get their remaining values relocated by a
+ * compaction of all disk layers.
+ *
+ * <p>Full memory layers are sealed and flushed to disk by a background thread, which then runs
+ * size-tiered compactions whenever there are too many disk layers. Writers only wait if flushing
+ * or compaction fall behind.
+ */
 class KVStoreImpl implements KVStore {
 
-  private static final int MAX_LAYERS = 6;
-  private static final int MAX_MEM_LAYER_SIZE = 128 << 20; // 128 MiB
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // releases the snapshots of iterators once neither they nor their entries are reachable anymore
+  private static final Cleaner ITERATOR_CLEANER = Cleaner.create();
+
+  // sealed memory layers waiting to be flushed before writers have to wait
+  private static final int MAX_IMMUTABLE_MEMORY_LAYERS = 2;
 
   private final Path rootDir;
+  private final KVStoreOptions options;
   private boolean opened = false;
   private boolean closed = false;
 
   private FileChannel lockFileChannel;
   private FileLock lockFileLock;
+  private ExecutorService background;
+  private ValueLog valueLog;
+  private Manifest manifest;
+  // value log files relocated by a compaction, but still referenced by layers in use
+  private final Set<Integer> relocatedBlobFiles = new HashSet<>();
 
   private int nextId = 0;
-  private final Deque<Layer> layers = new ArrayDeque<>();
-
-  KVStoreImpl(Path rootDir) {
+  private volatile Snapshot snapshot = new Snapshot(ImmutableList.of());
+  private final Set<Layer> openLayers = ConcurrentHashMap.newKeySet();
+
+  @Nullable private MemoryLayer activeLayer = null;
+  @Nullable private WriteAheadLog activeWal = null;
+  private int immutableMemoryLayers = 0;
+  @Nullable private Throwable backgroundError = null;
+
+  private int flushCount = 0;
+  private int compactionCount = 0;
+  private int valueLogCollections = 0;
+  private long compactedBytes = 0;
+  private int writeStallCount = 0;
+  private long writeStallNanos = 0;
+
+  KVStoreImpl(Path rootDir, KVStoreOptions options) {
     this.rootDir = rootDir;
+    this.options = options;
   }
 
   synchronized void open() throws KVStoreException {
@@ -59,6 +125,16 @@ class KVStoreImpl implements KVStore {
     Preconditions.checkState(!closed);
     opened = true;
 
+    background =
+        options.backgroundCompaction
+            ? Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                    .setNameFormat("kv-store-background-%d")
+                    .setDaemon(true)
+                    .build())
+            : MoreExecutors.newDirectExecutorService();
+
+    List<DiskLayer> diskLayers = new ArrayList<>();
     try {
       lockFileChannel =
           FileChannel.open(
@@ -68,42 +144,109 @@ class KVStoreImpl implements KVStore {
               StandardOpenOption.DELETE_ON_CLOSE);
       lockFileLock = lockFileChannel.lock();
 
-      for (Path path :
+      valueLog = new ValueLog(rootDir, options.memoryMapped);
+      valueLog.open();
+      boolean hasManifest = Manifest.exists(rootDir);
+      manifest = Manifest.read(rootDir);
+      List<Path> dataFiles =
           Files.list(rootDir)
               .filter(p -> p.getFileName().toString().startsWith("data-"))
               .sorted()
+              .collect(Collectors.toList());
+      if (hasManifest) {
+        for (Manifest.LayerInfo info : manifest.layers()) {
+          diskLayers.add(openReadOnly(info));
+        }
+        Set<Integer> live =
+            diskLayers.stream().map(layer -> layer.fileNumber).collect(Collectors.toSet());
+        for (Path path : dataFiles) {
+          if (!live.contains(DiskLayer.fileNumber(path))) {
+            logger.atInfo().log("deleting %s, which was left behind by a crash", path);
+            Files.delete(path);
+          }
+        }
+      } else {
+        // stores written before there was a manifest
+        for (Path path : dataFiles) {
+          diskLayers.add(openReadOnly(path));
+        }
+        // until the manifest lists them, the next open would take them for crash leftovers
+        manifest.seed(
+            diskLayers.stream().map(Manifest.LayerInfo::of).collect(Collectors.toList()));
+      }
+      manifest.rewrite();
+      // left by stores written before there was a manifest, possibly by an interrupted upgrade
+      Files.deleteIfExists(rootDir.resolve("latest-layer"));
+      Files.deleteIfExists(rootDir.resolve("compacted-layer"));
+      for (Path path :
+          Files.list(rootDir)
+              .filter(p -> p.getFileName().toString().startsWith("wal-"))
+              .sorted()
               .collect(Collectors.toList())) {
-        layers.push(openReadOnly(path));
-      }
-      nextId = layers.isEmpty() ? 0 : (layers.peek().id + 1);
-
-      if (layers.size() >= MAX_LAYERS) {
-        List<DiskLayer> layersToCompact = new ArrayList<>();
-        DiskLayer first = (DiskLayer) layers.pop();
-        layersToCompact.add(first);
-        DiskLayer second = (DiskLayer) layers.pop();
-        layersToCompact.add(second);
-        long cumulativeSize = first.size() + second.size();
-
-        while (!layers.isEmpty() && ((DiskLayer) layers.peek()).size() < cumulativeSize) {
-          DiskLayer next = (DiskLayer) layers.pop();
-          layersToCompact.add(next);
-          cumulativeSize += next.size();
+        DiskLayer recovered = recover(path);
+        if (recovered != null) {
+          diskLayers.add(recovered);
         }
-
-        DiskLayer newLayer = compact(layersToCompact, layers.isEmpty());
-        layers.push(newLayer);
-        layersToCompact.forEach(Layer::close);
-        layersToCompact.forEach(DiskLayer::delete);
       }
     } catch (IOException e) {
       throw new KVStoreException(e);
     }
+    valueLog.deleteUnreferenced();
+    diskLayers.sort(Comparator.comparingInt((DiskLayer layer) -> layer.id).reversed());
+    // compacted layers keep the id of their newest input, but their file number is a fresh id
+    for (DiskLayer layer : diskLayers) {
+      nextId = Math.max(nextId, Math.max(layer.id, layer.fileNumber) + 1);
+    }
+    publish(ImmutableList.copyOf(diskLayers));
+
+    background.execute(() -> runInBackground(this::compactWhileNeeded));
+    checkBackgroundError();
+  }
+
+  // flushes what an unclean shutdown left in a write-ahead log
+  @Nullable
+  private DiskLayer recover(Path walPath) throws IOException {
+    int id = Integer.parseInt(walPath.getFileName().toString().substring("wal-".length()), 10);
+    DiskLayer recovered = null;
+    if (!manifest.containsLayer(id)) {
+      MemoryLayer memLayer = newMemoryLayer(id);
+      int records = WriteAheadLog.replay(walPath, memLayer);
+      logger.atInfo().log("recovered %d writes from %s", records, walPath);
+      if (records > 0) {
+        recovered =
+            writeLayer(memLayer.keyIterator(Key.MIN, false, true), id, id, ImmutableSet.of());
+        manifest.apply(ImmutableList.of(Manifest.LayerInfo.of(recovered)), ImmutableList.of());
+      }
+    }
+    Files.delete(walPath);
+    return recovered;
+  }
+
+  private Path dataPath(int fileNumber) {
+    return rootDir.resolve(String.format("data-%06d", fileNumber));
   }
 
   private DiskLayer openReadOnly(Path path) throws KVStoreException {
-    DiskLayer readOnly = new DiskLayer(path);
+    DiskLayer readOnly =
+        new DiskLayer(path, options.memoryMapped ? DiskLayer.MAPPING_SIZE : 0, valueLog);
     readOnly.open();
+    return track(readOnly);
+  }
+
+  private DiskLayer openReadOnly(Manifest.LayerInfo info) throws KVStoreException {
+    DiskLayer readOnly =
+        new DiskLayer(
+            info.id,
+            dataPath(info.fileNumber),
+            options.memoryMapped ? DiskLayer.MAPPING_SIZE : 0,
+            valueLog);
+    readOnly.open(info.firstKey, info.lastKey);
+    return track(readOnly);
+  }
+
+  private DiskLayer track(DiskLayer readOnly) {
+    valueLog.addReferences(readOnly.getBlobReferences());
+    openLayers.add(readOnly);
     return readOnly;
   }
 
@@ -140,91 +283,365 @@ class KVStoreImpl implements KVStore {
     }
   }
 
-  private DiskLayer compact(List<DiskLayer> layers, boolean major) throws KVStoreException {
+  /** An immutable list of layers, newest first, kept open while anybody reads from it. */
+  private final class Snapshot {
+    final ImmutableList<Layer> layers;
+    // one reference is held by the store for as long as this is the current snapshot
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    Snapshot(ImmutableList<Layer> layers) {
+      this.layers = layers;
+      layers.forEach(Layer::retain);
+    }
+
+    boolean tryRetain() {
+      while (true) {
+        int count = references.get();
+        if (count == 0) {
+          return false;
+        } else if (references.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        for (Layer layer : layers) {
+          if (layer.release()) {
+            retire(layer);
+          }
+        }
+      }
+    }
+  }
+
+  private Snapshot acquireSnapshot() {
+    while (true) {
+      Snapshot current = snapshot;
+      if (current.tryRetain()) {
+        return current;
+      }
+    }
+  }
+
+  private void publish(ImmutableList<Layer> layers) {
+    Preconditions.checkState(Thread.holdsLock(this));
+    Snapshot previous = snapshot;
+    snapshot = new Snapshot(layers);
+    previous.release();
+  }
+
+  private void retire(Layer layer) {
+    if (!openLayers.remove(layer)) {
+      return;
+    }
+    try {
+      layer.close();
+    } catch (KVStoreException e) {
+      logger.atWarning().withCause(e).log("failed to close layer %d", layer.id);
+    }
+    valueLog.removeReferences(((DiskLayer) layer).getBlobReferences());
+  }
+
+  // replaces a run of consecutive layers in the current snapshot
+  private void replaceLayers(List<? extends Layer> replaced, Layer replacement) {
+    ImmutableList.Builder<Layer> builder = ImmutableList.builder();
+    for (Layer layer : snapshot.layers) {
+      if (layer == replaced.get(0)) {
+        builder.add(replacement);
+      } else if (!replaced.contains(layer)) {
+        builder.add(layer);
+      }
+    }
+    publish(builder.build());
+  }
+
+  private void runInBackground(Runnable task) {
+    try {
+      task.run();
+    } catch (Throwable t) {
+      logger.atSevere().withCause(t).log("background work failed in %s", rootDir);
+      synchronized (this) {
+        if (backgroundError == null) {
+          backgroundError = t;
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private void checkBackgroundError() throws KVStoreException {
+    Preconditions.checkState(Thread.holdsLock(this));
+    if (backgroundError != null) {
+      throw new KVStoreException(backgroundError);
+    }
+  }
+
+  // values in value log files to relocate get copied, other value log references are kept
+  private DiskLayer writeLayer(
+      Iterator<KeyEntry> it, int id, int fileNumber, Set<Integer> relocate)
+      throws KVStoreException {
+    Path path = dataPath(fileNumber);
     try {
       FileChannel fileChannel =
           FileChannel.open(
-              rootDir.resolve("latest-layer"),
+              path,
               StandardOpenOption.TRUNCATE_EXISTING,
               StandardOpenOption.CREATE,
               StandardOpenOption.WRITE);
 
-      DiskLayerWriter writer = new DiskLayerWriter(fileChannel);
-
-      PriorityQueue<Holder> queue = new PriorityQueue<>(layers.size());
-      for (DiskLayer layer : layers) {
-        Iterator<KeyEntry> it = layer.keyIterator(Key.MIN, true, true);
-        if (it.hasNext()) {
-          queue.add(new Holder(layer, it, true));
+      DiskLayerWriter writer =
+          new DiskLayerWriter(fileChannel, DiskLayerWriter.CURRENT_VERSION, options.compressNodes);
+      while (it.hasNext()) {
+        KeyEntry entry = it.next();
+        if (entry.isDeleteMarker()) {
+          writer.write(entry.getKey(), null);
+        } else if (isBlobReference(entry.info)
+            && !relocate.contains(((BlockLocation) entry.info).blobFile)) {
+          writer.writeBlobReference(entry.getKey(), (BlockLocation) entry.info);
+        } else {
+          ByteBuffer value = entry.readByteBuffer();
+          if (options.blobThreshold > 0 && value.remaining() >= options.blobThreshold) {
+            writer.writeBlobReference(entry.getKey(), valueLog.append(value));
+          } else {
+            writer.write(entry.getKey(), value);
+          }
         }
       }
+      writer.finish();
+      // the manifest is about to refer to the layer, and whatever it replaces is about to go away
+      valueLog.sync();
+      fileChannel.force(false);
+      fileChannel.close();
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+    DiskLayer written =
+        new DiskLayer(id, path, options.memoryMapped ? DiskLayer.MAPPING_SIZE : 0, valueLog);
+    written.open();
+    return track(written);
+  }
 
-      Key lastKey = Key.MIN;
-      while (!queue.isEmpty()) {
-        Holder front = queue.poll();
+  private void flushInBackground(MemoryLayer memLayer, @Nullable WriteAheadLog wal) {
+    DiskLayer diskLayer =
+        writeLayer(
+            memLayer.keyIterator(Key.MIN, false, true),
+            memLayer.id,
+            memLayer.id,
+            ImmutableSet.of());
+    manifest.apply(ImmutableList.of(Manifest.LayerInfo.of(diskLayer)), ImmutableList.of());
+    if (wal != null) {
+      wal.delete();
+    }
+    synchronized (this) {
+      // readers kept using the memory layer until the disk layer replaces it
+      replaceLayers(ImmutableList.of(memLayer), diskLayer);
+      immutableMemoryLayers--;
+      flushCount++;
+      notifyAll();
+    }
+    compactWhileNeeded();
+  }
 
-        Key key = front.current.key;
-        if (lastKey.compareTo(key) < 0) {
-          if (!front.current.isDeleteMarker()) {
-            // keep it
-            writer.write(key, front.current.readByteBuffer());
-          } else if (!major) {
-            // keep deletions in minor compactions
-            writer.write(key, null);
-          }
-          lastKey = key;
+  private void compactWhileNeeded() {
+    while (true) {
+      List<DiskLayer> layersToCompact;
+      boolean major;
+      synchronized (this) {
+        List<DiskLayer> diskLayers = diskLayers();
+        if (diskLayers.size() < options.compactionTrigger) {
+          break;
         }
+        layersToCompact = pickCompaction(diskLayers);
+        major = layersToCompact.size() == diskLayers.size();
+      }
+      compact(layersToCompact, major, ImmutableSet.of());
+    }
+    collectValueLogGarbage();
+  }
 
-        if (front.moveOn()) {
-          queue.add(front);
-        }
+  private void collectValueLogGarbage() {
+    relocatedBlobFiles.retainAll(valueLog.fileIds());
+    Set<Integer> garbage = new HashSet<>(valueLog.findGarbage(options.blobLiveRatio).keySet());
+    garbage.removeAll(relocatedBlobFiles);
+    if (garbage.isEmpty()) {
+      return;
+    }
+
+    List<DiskLayer> diskLayers;
+    synchronized (this) {
+      diskLayers = diskLayers();
+    }
+    if (diskLayers.isEmpty()) {
+      return;
+    }
+    compact(diskLayers, true, garbage);
+    // the files get deleted once no open layer references them anymore
+    relocatedBlobFiles.addAll(garbage);
+    synchronized (this) {
+      valueLogCollections++;
+    }
+  }
+
+  private List<DiskLayer> diskLayers() {
+    return snapshot.layers.stream()
+        .filter(DiskLayer.class::isInstance)
+        .map(DiskLayer.class::cast)
+        .collect(Collectors.toList());
+  }
+
+  // size-tiered: the two newest layers plus any older ones smaller than everything picked so far
+  private static List<DiskLayer> pickCompaction(List<DiskLayer> diskLayers) {
+    List<DiskLayer> layersToCompact = new ArrayList<>(diskLayers.subList(0, 2));
+    long cumulativeSize = diskLayers.get(0).size() + diskLayers.get(1).size();
+    for (DiskLayer next : diskLayers.subList(2, diskLayers.size())) {
+      if (next.size() >= cumulativeSize) {
+        break;
       }
+      layersToCompact.add(next);
+      cumulativeSize += next.size();
+    }
+    return layersToCompact;
+  }
 
-      writer.finish();
-      fileChannel.close();
+  private static boolean isBlobReference(Layer.KeyInfo info) {
+    return info instanceof BlockLocation
+        && ((BlockLocation) info).type == BlockLocation.Type.BLOB;
+  }
 
-      Path newPath = rootDir.resolve(String.format("data-%06d", nextId++));
-      fileChannel.close();
-      Files.move(rootDir.resolve("latest-layer"), newPath, StandardCopyOption.ATOMIC_MOVE);
+  private void compact(List<DiskLayer> layers, boolean major, Set<Integer> relocate)
+      throws KVStoreException {
+    PriorityQueue<Holder> queue = new PriorityQueue<>(layers.size());
+    for (DiskLayer layer : layers) {
+      Iterator<KeyEntry> it = layer.keyIterator(Key.MIN, true, true);
+      if (it.hasNext()) {
+        queue.add(new Holder(layer, it, true));
+      }
+    }
 
-      return openReadOnly(newPath);
-    } catch (IOException e) {
-      throw new KVStoreException(e);
+    Iterator<KeyEntry> merged =
+        new AbstractIterator<KeyEntry>() {
+          Key lastKey = Key.MIN;
+
+          @Override
+          protected KeyEntry computeNext() {
+            while (!queue.isEmpty()) {
+              Holder front = queue.poll();
+              KeyEntry entry = front.current;
+              if (front.moveOn()) {
+                queue.add(front);
+              }
+              if (lastKey.compareTo(entry.key) < 0) {
+                lastKey = entry.key;
+                // keep deletions in minor compactions
+                if (!entry.isDeleteMarker() || !major) {
+                  return entry;
+                }
+              }
+            }
+            return endOfData();
+          }
+        };
+
+    int fileNumber;
+    synchronized (this) {
+      fileNumber = nextId++;
+    }
+    // the merged layer takes the place of the newest layer it replaces
+    DiskLayer newLayer = writeLayer(merged, layers.get(0).id, fileNumber, relocate);
+    manifest.apply(
+        ImmutableList.of(Manifest.LayerInfo.of(newLayer)),
+        layers.stream().map(layer -> layer.fileNumber).collect(Collectors.toList()));
+    synchronized (this) {
+      for (DiskLayer layer : layers) {
+        layer.deleteOnClose();
+      }
+      replaceLayers(layers, newLayer);
+      compactionCount++;
+      compactedBytes += newLayer.size();
+      notifyAll();
     }
   }
 
   @Override
-  public synchronized void close() throws KVStoreException {
-    Preconditions.checkState(opened);
-    Preconditions.checkState(!closed);
+  public void close() throws KVStoreException {
+    synchronized (this) {
+      Preconditions.checkState(opened);
+      Preconditions.checkState(!closed);
+      flush();
+      closed = true;
+    }
 
-    flush();
+    // compactions need the monitor to finish
+    MoreExecutors.shutdownAndAwaitTermination(background, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+    synchronized (this) {
+      // stores only read from have nothing to tell
+      if (flushCount > 0 || compactionCount > 0 || writeStallCount > 0) {
+        logger.atInfo().log(
+            "%s: %d flushes, %d compactions writing %d bytes (%d relocating values), "
+                + "%d write stalls for %d ms",
+            rootDir,
+            flushCount,
+            compactionCount,
+            compactedBytes,
+            valueLogCollections,
+            writeStallCount,
+            TimeUnit.NANOSECONDS.toMillis(writeStallNanos));
+      }
 
-    closed = true;
-    while (!layers.isEmpty()) {
-      layers.pop().close();
-    }
+      valueLog.close();
+      manifest.close();
+      publish(ImmutableList.of());
+      // layers still held by unfinished iterators
+      for (Layer layer : openLayers) {
+        retire(layer);
+      }
 
-    try {
-      lockFileLock.release();
-      lockFileChannel.close();
-    } catch (IOException e) {
-      throw new KVStoreException(e);
+      try {
+        lockFileLock.release();
+        lockFileChannel.close();
+      } catch (IOException e) {
+        throw new KVStoreException(e);
+      }
+      checkBackgroundError();
     }
   }
 
   @Override
   public Iterator<Entry> iterator(Key start, boolean inclusive, boolean ascending) {
-    return new AbstractIterator<Entry>() {
-      boolean started = false;
+    return mergingIterator(start, inclusive, ascending, null);
+  }
+
+  @Override
+  public Scan scan(Key start, Key end) {
+    Preconditions.checkArgument(start.compareTo(end) <= 0, "%s after %s", start, end);
+    return mergingIterator(start, true, true, end);
+  }
+
+  // merges the entries of all layers, up to end excluded if given
+  private Scan mergingIterator(Key start, boolean inclusive, boolean ascending, @Nullable Key end) {
+    class MergingIterator extends AbstractIterator<Entry> implements Scan {
+      Object lease = null;
+      Cleaner.Cleanable cleanable = null;
+      boolean closed = false;
       Key lastKey = null;
       PriorityQueue<Holder> queue = new PriorityQueue<>();
 
       @Override
       protected Entry computeNext() {
-        if (!started) {
-          started = true;
-          for (Layer layer : layers) {
+        if (closed) {
+          return endOfData();
+        }
+        if (lease == null) {
+          Snapshot iteratorSnapshot = acquireSnapshot();
+          lease = new Object();
+          cleanable = ITERATOR_CLEANER.register(lease, iteratorSnapshot::release);
+          for (Layer layer : iteratorSnapshot.layers) {
+            if (end != null && !layer.overlaps(start, end)) {
+              continue;
+            }
             Iterator<KeyEntry> it = layer.keyIterator(start, inclusive, ascending);
             if (it.hasNext()) {
               queue.add(new Holder(layer, it, ascending));
@@ -235,99 +652,256 @@ class KVStoreImpl implements KVStore {
         while (!queue.isEmpty()) {
           Holder front = queue.poll();
           KeyEntry currentEntry = front.current;
+          if (end != null && currentEntry.key.compareTo(end) >= 0) {
+            queue.clear();
+            break;
+          }
           if (front.moveOn()) {
             queue.add(front);
           }
           if (lastKey == null || !lastKey.equals(currentEntry.key)) {
             lastKey = currentEntry.key;
             if (!currentEntry.isDeleteMarker()) {
-              return currentEntry;
+              return new LeasedEntry(currentEntry, lease);
             }
           }
         }
 
         return endOfData();
       }
-    };
+
+      @Override
+      public void close() {
+        closed = true;
+        queue.clear();
+        if (cleanable != null) {
+          // runs the release at most once, no matter whether the lease is collected later on
+          cleanable.clean();
+        }
+      }
+    }
+    return new MergingIterator();
   }
 
-  @Override
-  public synchronized void store(Key key, byte[] value) throws KVStoreException {
-    Preconditions.checkArgument(key.isNormal());
-    if (layers.isEmpty() || !(layers.peek() instanceof MemoryLayer)) {
-      layers.push(new MemoryLayer(nextId++));
+  /** Keeps the iterator's snapshot alive for as long as the entry can still be read. */
+  private static final class LeasedEntry implements Entry {
+    private final KeyEntry entry;
+    private final Object lease;
+
+    LeasedEntry(KeyEntry entry, Object lease) {
+      this.entry = entry;
+      this.lease = lease;
     }
-    MemoryLayer memLayer = (MemoryLayer) layers.peek();
-    memLayer.write(key, ByteBuffer.wrap(value));
 
-    if (memLayer.getApproximateByteSize() > MAX_MEM_LAYER_SIZE) {
-      flush();
+    @Override
+    public Key getKey() {
+      return entry.getKey();
+    }
+
+    @Override
+    public int size() {
+      return entry.size();
     }
+
+    @Override
+    public byte[] read() throws KVStoreException {
+      return entry.read();
+    }
+  }
+
+  @Override
+  public void store(Key key, byte[] value) throws KVStoreException {
+    Preconditions.checkArgument(key.isNormal());
+    write(key, ByteBuffer.wrap(value));
   }
 
   @Override
-  public synchronized void delete(Key key) throws KVStoreException {
+  public void delete(Key key) throws KVStoreException {
     Preconditions.checkArgument(key.isNormal());
-    if (layers.isEmpty() || !(layers.peek() instanceof MemoryLayer)) {
-      layers.push(new MemoryLayer(nextId++));
+    write(key, null);
+  }
+
+  private void write(Key key, @Nullable ByteBuffer value) throws KVStoreException {
+    MemoryLayer memLayer;
+    WriteAheadLog wal;
+    WriteAheadLog.Record walRecord = null;
+    synchronized (this) {
+      checkBackgroundError();
+      memLayer = activeMemoryLayer();
+      wal = activeWal;
+      if (value != null) {
+        memLayer.write(key, value);
+      } else {
+        memLayer.delete(key);
+      }
+      // last, so that nothing can fail between reserving the record and writing it
+      if (wal != null) {
+        walRecord = wal.reserve(key, value);
+      }
     }
-    MemoryLayer memLayer = (MemoryLayer) layers.peek();
-    memLayer.delete(key);
+    // outside the lock, so that large values don't hold up other writers and one sync can cover
+    // several of them
+    if (wal != null) {
+      try {
+        wal.sync(wal.write(walRecord));
+      } catch (KVStoreException e) {
+        // the write is in the memory layer, flushing it makes it durable and starts a fresh log
+        synchronized (this) {
+          if (activeWal == wal) {
+            seal();
+          }
+        }
+        throw e;
+      }
+    }
+    // only once the record is written, as flushing the layer waits for all its records
+    if (memLayer.getApproximateByteSize() > options.memoryLayerSize) {
+      synchronized (this) {
+        sealIfFull(memLayer);
+      }
+    }
+  }
 
-    if (memLayer.getApproximateByteSize() > MAX_MEM_LAYER_SIZE) {
-      flush();
+  private MemoryLayer activeMemoryLayer() throws KVStoreException {
+    Preconditions.checkState(Thread.holdsLock(this));
+    if (activeLayer == null) {
+      activeLayer = newMemoryLayer(nextId++);
+      if (options.writeAheadLog) {
+        activeWal =
+            WriteAheadLog.create(
+                rootDir.resolve(String.format("wal-%06d", activeLayer.id)), options.walSync);
+      }
+      publish(ImmutableList.<Layer>builder().add(activeLayer).addAll(snapshot.layers).build());
     }
+    return activeLayer;
   }
 
-  @Override
-  public synchronized byte[] get(Key key) throws KVStoreException {
-    Layer.KeyInfo keyInfo = find(key);
-    if (keyInfo == null || keyInfo.isDeleteMarker()) {
-      return null;
+  private MemoryLayer newMemoryLayer(int id) throws KVStoreException {
+    return new MemoryLayer(id, options.offHeapMemoryLayers ? new OffHeapArena() : null);
+  }
+
+
+  private void sealIfFull(MemoryLayer memLayer) throws KVStoreException {
+    if (memLayer.getApproximateByteSize() > options.memoryLayerSize) {
+      awaitWriteCapacity();
+      // somebody else might have sealed it while we were waiting
+      if (activeLayer == memLayer) {
+        seal();
+      }
     }
-    return ByteBuffer.allocate(keyInfo.size()).put(keyInfo.read()).rewind().array();
+  }
+
+  private void awaitWriteCapacity() throws KVStoreException {
+    long stallStart = 0;
+    while (backgroundError == null
+        && (immutableMemoryLayers >= MAX_IMMUTABLE_MEMORY_LAYERS
+            || diskLayers().size() >= options.writeStallLayers)) {
+      if (stallStart == 0) {
+        stallStart = System.nanoTime();
+        writeStallCount++;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KVStoreException(e);
+      }
+    }
+    if (stallStart != 0) {
+      writeStallNanos += System.nanoTime() - stallStart;
+    }
+    checkBackgroundError();
+  }
+
+  private void seal() throws KVStoreException {
+    MemoryLayer memLayer = activeLayer;
+    WriteAheadLog wal = activeWal;
+    activeLayer = null;
+    activeWal = null;
+    immutableMemoryLayers++;
+    background.execute(() -> runInBackground(() -> flushInBackground(memLayer, wal)));
+    checkBackgroundError();
   }
 
   @Override
-  public synchronized boolean contains(Key key) throws KVStoreException {
-    Layer.KeyInfo keyInfo = find(key);
-    return keyInfo != null && !keyInfo.isDeleteMarker();
+  public byte[] get(Key key) throws KVStoreException {
+    ByteBuffer buffer = getBuffer(key);
+    return buffer != null ? toByteArray(buffer) : null;
   }
 
   @Override
-  public synchronized void flush() throws KVStoreException {
-    if (!layers.isEmpty() && layers.peek() instanceof MemoryLayer) {
-      try {
-        FileChannel fileChannel =
-            FileChannel.open(
-                rootDir.resolve("latest-layer"),
-                StandardOpenOption.TRUNCATE_EXISTING,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.WRITE);
-
-        DiskLayerWriter writer = new DiskLayerWriter(fileChannel);
-        Layer memLayer = layers.pop();
-        Iterator<KeyEntry> it = memLayer.keyIterator(Key.MIN, false, true);
-        while (it.hasNext()) {
-          KeyEntry entry = it.next();
-          writer.write(entry.getKey(), entry.isDeleteMarker() ? null : entry.readByteBuffer());
+  public ByteBuffer getBuffer(Key key) throws KVStoreException {
+    Snapshot current = acquireSnapshot();
+    try {
+      Layer.KeyInfo keyInfo = find(current, key);
+      if (keyInfo == null || keyInfo.isDeleteMarker()) {
+        return null;
+      }
+      return keyInfo.read();
+    } finally {
+      current.release();
+    }
+  }
+
+  @Override
+  public Map<Key, byte[]> multiGet(Collection<Key> keys) throws KVStoreException {
+    Key[] sorted = keys.stream().distinct().sorted().toArray(Key[]::new);
+    Layer.KeyInfo[] results = new Layer.KeyInfo[sorted.length];
+    Snapshot current = acquireSnapshot();
+    try {
+      for (Layer layer : current.layers) {
+        layer.findAll(sorted, results);
+      }
+      ImmutableMap.Builder<Key, byte[]> values = ImmutableMap.builder();
+      for (int i = 0; i < sorted.length; i++) {
+        if (results[i] != null && !results[i].isDeleteMarker()) {
+          values.put(sorted[i], toByteArray(results[i].read()));
         }
-        writer.finish();
-        fileChannel.close();
+      }
+      return values.build();
+    } finally {
+      current.release();
+    }
+  }
 
-        Path newPath = rootDir.resolve(String.format("data-%06d", memLayer.id));
-        fileChannel.close();
-        Files.move(rootDir.resolve("latest-layer"), newPath, StandardCopyOption.ATOMIC_MOVE);
+  @Override
+  public boolean contains(Key key) throws KVStoreException {
+    Snapshot current = acquireSnapshot();
+    try {
+      Layer.KeyInfo keyInfo = find(current, key);
+      return keyInfo != null && !keyInfo.isDeleteMarker();
+    } finally {
+      current.release();
+    }
+  }
 
-        layers.push(openReadOnly(newPath));
-      } catch (IOException e) {
+  @Override
+  public synchronized void flush() throws KVStoreException {
+    checkBackgroundError();
+    if (activeLayer != null) {
+      seal();
+    }
+    while (immutableMemoryLayers > 0 && backgroundError == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
         throw new KVStoreException(e);
       }
     }
+    checkBackgroundError();
+  }
+
+  synchronized int getCompactionCount() {
+    return compactionCount;
   }
 
-  private Layer.KeyInfo find(Key key) throws KVStoreException {
-    for (Layer layer : layers) {
+  synchronized int getDiskLayerCount() {
+    return diskLayers().size();
+  }
+
+  private static Layer.KeyInfo find(Snapshot snapshot, Key key) throws KVStoreException {
+    for (Layer layer : snapshot.layers) {
       Layer.KeyInfo keyInfo = layer.find(key);
       if (keyInfo != null) {
         return keyInfo;
@@ -336,13 +910,29 @@ class KVStoreImpl implements KVStore {
     return null;
   }
 
+  // Buffers freshly read from a channel are handed out as they are, anything else is copied.
+  static byte[] toByteArray(ByteBuffer buffer) {
+    if (buffer.hasArray()
+        && buffer.arrayOffset() == 0
+        && buffer.position() == 0
+        && buffer.remaining() == buffer.array().length) {
+      return buffer.array();
+    }
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  // positional reads leave the channel's position alone, so readers can share the channel
   static ByteBuffer readFromChannel(FileChannel channel, long offset, int size)
       throws KVStoreException {
     try {
-      channel.position(offset);
       ByteBuffer buffer = ByteBuffer.allocate(size);
       while (buffer.hasRemaining()) {
-        channel.read(buffer);
+        if (channel.read(buffer, offset + buffer.position()) < 0) {
+          throw new EOFException(
+              String.format("unexpected end of file reading %d bytes at %d", size, offset));
+        }
       }
       buffer.rewind();
       return buffer;
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import com.google.common.base.Preconditions;
+
+public final class KVStoreOptions {
+  /** When to fsync the write-ahead log. */
+  public enum WalSync {
+    /** Never, records reach the OS right away and only get lost if the machine goes down. */
+    NEVER,
+    /** At most about once a second, whenever a write comes along. */
+    PERIODIC,
+    /** Before every write returns, sharing syncs between concurrent writers. */
+    ALWAYS,
+  }
+
+  public static final KVStoreOptions DEFAULT = KVStoreOptions.builder().build();
+
+  public static KVStoreOptionsBuilder builder() {
+    return new KVStoreOptionsBuilder();
+  }
+
+  public static final class KVStoreOptionsBuilder {
+    private boolean memoryMapped = true;
+    private boolean backgroundCompaction = true;
+    private long memoryLayerSize = 128 << 20; // 128 MiB
+    private int compactionTrigger = 6;
+    private int writeStallLayers = 12;
+    private boolean writeAheadLog = true;
+    private WalSync walSync = WalSync.NEVER;
+    private int blobThreshold = 64 << 10;
+    private double blobLiveRatio = 0.5;
+    private boolean compressNodes = false;
+    private boolean offHeapMemoryLayers = false;
+
+    private KVStoreOptionsBuilder() {
+    }
+
+    /**
+     * Whether to read on-disk layers through read-only memory mappings. Values and tree nodes are
+     * then served straight from the page cache. Falls back to regular reads if the file system
+     * doesn't support mappings.
+     */
+    public KVStoreOptionsBuilder setMemoryMapped(boolean memoryMapped) {
+      this.memoryMapped = memoryMapped;
+      return this;
+    }
+
+    /**
+     * Whether to flush memory layers and compact disk layers on a background thread. Otherwise the
+     * writer filling up a memory layer does the work itself.
+     */
+    public KVStoreOptionsBuilder setBackgroundCompaction(boolean backgroundCompaction) {
+      this.backgroundCompaction = backgroundCompaction;
+      return this;
+    }
+
+    /** Approximate size at which the memory layer gets flushed to disk. */
+    public KVStoreOptionsBuilder setMemoryLayerSize(long memoryLayerSize) {
+      Preconditions.checkArgument(memoryLayerSize > 0, "memory layer size: %s", memoryLayerSize);
+      this.memoryLayerSize = memoryLayerSize;
+      return this;
+    }
+
+    /** Number of disk layers at which a compaction is started. */
+    public KVStoreOptionsBuilder setCompactionTrigger(int compactionTrigger) {
+      Preconditions.checkArgument(
+          compactionTrigger >= 2, "compaction trigger: %s", compactionTrigger);
+      this.compactionTrigger = compactionTrigger;
+      return this;
+    }
+
+    /** Number of disk layers at which writers wait for compactions to catch up. */
+    public KVStoreOptionsBuilder setWriteStallLayers(int writeStallLayers) {
+      this.writeStallLayers = writeStallLayers;
+      return this;
+    }
+
+    /**
+     * Whether to log writes to the memory layer, so they can be recovered if the store isn't
+     * closed properly.
+     */
+    public KVStoreOptionsBuilder setWriteAheadLog(boolean writeAheadLog) {
+      this.writeAheadLog = writeAheadLog;
+      return this;
+    }
+
+    /** When to fsync the write-ahead log, if there is one. */
+    public KVStoreOptionsBuilder setWalSync(WalSync walSync) {
+      this.walSync = Preconditions.checkNotNull(walSync);
+      return this;
+    }
+
+    /**
+     * Size from which values are kept in separate value log files rather than in the disk layers,
+     * so compactions don't have to copy them. Zero keeps all values in the disk layers.
+     */
+    public KVStoreOptionsBuilder setBlobThreshold(int blobThreshold) {
+      Preconditions.checkArgument(blobThreshold >= 0, "blob threshold: %s", blobThreshold);
+      this.blobThreshold = blobThreshold;
+      return this;
+    }
+
+    /** Share of a value log file still in use below which its values are moved elsewhere. */
+    public KVStoreOptionsBuilder setBlobLiveRatio(double blobLiveRatio) {
+      Preconditions.checkArgument(
+          blobLiveRatio >= 0 && blobLiveRatio < 1, "blob live ratio: %s", blobLiveRatio);
+      this.blobLiveRatio = blobLiveRatio;
+      return this;
+    }
+
+    /** Whether to compress B-tree nodes, trading CPU for smaller layers on disk. */
+    public KVStoreOptionsBuilder setCompressNodes(boolean compressNodes) {
+      this.compressNodes = compressNodes;
+      return this;
+    }
+
+    /**
+     * Whether memory layers keep their values in direct buffers outside the heap, which get written
+     * to disk without being copied back. Off by default: the buffers count against {@code
+     * -XX:MaxDirectMemorySize} and are only freed by the garbage collector.
+     */
+    public KVStoreOptionsBuilder setOffHeapMemoryLayers(boolean offHeapMemoryLayers) {
+      this.offHeapMemoryLayers = offHeapMemoryLayers;
+      return this;
+    }
+
+    public KVStoreOptions build() {
+      Preconditions.checkArgument(
+          writeStallLayers > compactionTrigger,
+          "write stalls at %s layers, compaction starts at %s",
+          writeStallLayers,
+          compactionTrigger);
+      return new KVStoreOptions(
+          memoryMapped,
+          backgroundCompaction,
+          memoryLayerSize,
+          compactionTrigger,
+          writeStallLayers,
+          writeAheadLog,
+          walSync,
+          blobThreshold,
+          blobLiveRatio,
+          compressNodes,
+          offHeapMemoryLayers);
+    }
+  }
+
+  public final boolean memoryMapped;
+  public final boolean backgroundCompaction;
+  public final long memoryLayerSize;
+  public final int compactionTrigger;
+  public final int writeStallLayers;
+  public final boolean writeAheadLog;
+  public final WalSync walSync;
+  public final int blobThreshold;
+  public final double blobLiveRatio;
+  public final boolean compressNodes;
+  public final boolean offHeapMemoryLayers;
+
+  private KVStoreOptions(
+      boolean memoryMapped,
+      boolean backgroundCompaction,
+      long memoryLayerSize,
+      int compactionTrigger,
+      int writeStallLayers,
+      boolean writeAheadLog,
+      WalSync walSync,
+      int blobThreshold,
+      double blobLiveRatio,
+      boolean compressNodes,
+      boolean offHeapMemoryLayers) {
+    this.memoryMapped = memoryMapped;
+    this.backgroundCompaction = backgroundCompaction;
+    this.memoryLayerSize = memoryLayerSize;
+    this.compactionTrigger = compactionTrigger;
+    this.writeStallLayers = writeStallLayers;
+    this.writeAheadLog = writeAheadLog;
+    this.walSync = walSync;
+    this.blobThreshold = blobThreshold;
+    this.blobLiveRatio = blobLiveRatio;
+    this.compressNodes = compressNodes;
+    this.offHeapMemoryLayers = offHeapMemoryLayers;
+  }
+}
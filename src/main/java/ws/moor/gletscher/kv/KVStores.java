@@ -23,12 +23,21 @@ import java.nio.file.Path;
 public class KVStores {
 
   public static KVStore open(Path path) throws KVStoreException {
-    KVStoreImpl store = new KVStoreImpl(path);
+    return open(path, KVStoreOptions.DEFAULT);
+  }
+
+  public static KVStore open(Path path, KVStoreOptions options) throws KVStoreException {
+    KVStoreImpl store = new KVStoreImpl(path, options);
     store.open();
     return store;
   }
 
   public static KVStore openOrCreate(Path path) throws KVStoreException {
+    return openOrCreate(path, KVStoreOptions.DEFAULT);
+  }
+
+  public static KVStore openOrCreate(Path path, KVStoreOptions options)
+      throws KVStoreException {
     if (!Files.isDirectory(path)) {
       try {
         Files.createDirectories(path);
@@ -36,6 +45,6 @@ public class KVStores {
         throw new KVStoreException(e);
       }
     }
-    return open(path);
+    return open(path, options);
   }
 }
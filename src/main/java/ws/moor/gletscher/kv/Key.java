@@ -18,6 +18,7 @@ package ws.moor.gletscher.kv;
 
 import com.google.common.base.Preconditions;
 import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
 import com.google.common.primitives.UnsignedBytes;
 
 import java.nio.ByteBuffer;
@@ -93,6 +94,22 @@ public final class Key implements Comparable<Key> {
     }
   }
 
+  /** Compares against a key serialized at {@code offset}, without deserializing it. */
+  int compareToSerialized(byte[] data, int offset) {
+    int length = Ints.fromBytes(data[offset], data[offset + 1], data[offset + 2], data[offset + 3]);
+    if (length == 0) {
+      return this == MIN ? 0 : 1;
+    } else if (length == -1) {
+      return this == MAX ? 0 : -1;
+    } else if (this == MIN) {
+      return -1;
+    } else if (this == MAX) {
+      return 1;
+    } else {
+      return Arrays.compareUnsigned(key, 0, key.length, data, offset + 4, offset + 4 + length);
+    }
+  }
+
   @Override
   public int hashCode() {
     if (hashCode == 0) {
@@ -125,6 +142,10 @@ public final class Key implements Comparable<Key> {
     }
   }
 
+  public byte[] toByteArray() {
+    return key.clone();
+  }
+
   public boolean isNormal() {
     return type == KeyType.NORMAL;
   }
@@ -162,6 +183,19 @@ public final class Key implements Comparable<Key> {
     }
   }
 
+  /** Returns the smallest key greater than all keys starting with this one. */
+  public Key prefixEnd() {
+    Preconditions.checkState(isNormal());
+    for (int i = key.length - 1; i >= 0; i--) {
+      if (key[i] != (byte) 0xff) {
+        byte[] end = Arrays.copyOf(key, i + 1);
+        end[i]++;
+        return new Key(KeyType.NORMAL, end);
+      }
+    }
+    return MAX;
+  }
+
   /** Returns lexicographically next key. */
   public Key next() {
     Preconditions.checkState(isNormal());
@@ -19,17 +19,49 @@ package ws.moor.gletscher.kv;
 import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 abstract class Layer {
 
   protected final int id;
+  // number of store snapshots containing this layer
+  private final AtomicInteger references = new AtomicInteger();
 
   Layer(int id) {
     this.id = id;
   }
 
+  void retain() {
+    references.incrementAndGet();
+  }
+
+  /** Returns whether the last reference was released and the layer can be closed. */
+  boolean release() {
+    return references.decrementAndGet() == 0;
+  }
+
   abstract @Nullable KeyInfo find(Key key) throws KVStoreException;
 
+  /** Looks up the sorted {@code keys} whose entry in {@code results} is still null. */
+  void findAll(Key[] keys, KeyInfo[] results) throws KVStoreException {
+    for (int i = 0; i < keys.length; i++) {
+      if (results[i] == null) {
+        results[i] = find(keys[i]);
+      }
+    }
+  }
+
+  /** Returns the smallest key in the layer, including deletions, or null if it's empty. */
+  abstract @Nullable Key firstKey();
+
+  abstract @Nullable Key lastKey();
+
+  /** Returns whether the layer might hold keys from {@code start} up to {@code end} excluded. */
+  boolean overlaps(Key start, Key end) {
+    Key first = firstKey();
+    return first != null && first.compareTo(end) < 0 && lastKey().compareTo(start) >= 0;
+  }
+
   abstract void close() throws KVStoreException;
 
   abstract Iterator<KeyEntry> keyIterator(Key start, boolean inclusive, boolean ascending);
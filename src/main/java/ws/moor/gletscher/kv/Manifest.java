@@ -0,0 +1,297 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Edit log of the disk layers making up a store, kept in {@code MANIFEST}. A layer only becomes
+ * part of the store once the edit adding it has been synced, and the files of the layers an edit
+ * removes are only deleted afterwards. Whatever {@code data-NNNNNN} file the manifest doesn't know
+ * about was left behind by a crash and can go.
+ *
+ * <p>The file starts with its format version, followed by records framed like those of the {@link
+ * WriteAheadLog}: payload length, CRC32 of the payload and the payload. Each payload is an edit
+ * listing the layers added, with their size and key range, and the files of the layers removed.
+ * Replaying stops at the first truncated or corrupt record, whose edit never took effect.
+ */
+final class Manifest {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String FILE_NAME = "MANIFEST";
+  private static final long CURRENT_VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+
+  private final Path path;
+  // live layers by file number
+  private final Map<Integer, LayerInfo> layers = new TreeMap<>();
+  @Nullable private FileChannel channel;
+
+  /** What the store needs to know about a disk layer without opening it. */
+  static final class LayerInfo {
+    final int id;
+    final int fileNumber;
+    final long size;
+    @Nullable final Key firstKey;
+    @Nullable final Key lastKey;
+
+    LayerInfo(int id, int fileNumber, long size, @Nullable Key firstKey, @Nullable Key lastKey) {
+      Preconditions.checkArgument((firstKey == null) == (lastKey == null));
+      this.id = id;
+      this.fileNumber = fileNumber;
+      this.size = size;
+      this.firstKey = firstKey;
+      this.lastKey = lastKey;
+    }
+
+    static LayerInfo of(DiskLayer layer) {
+      return new LayerInfo(
+          layer.id, layer.fileNumber, layer.size(), layer.firstKey(), layer.lastKey());
+    }
+
+    private int serializedSize() {
+      int keysSize = firstKey != null ? firstKey.serializedSize() + lastKey.serializedSize() : 0;
+      return 4 + 4 + 8 + 1 + keysSize;
+    }
+
+    private void writeTo(ByteBuffer buffer) {
+      buffer.putInt(id);
+      buffer.putInt(fileNumber);
+      buffer.putLong(size);
+      buffer.put((byte) (firstKey != null ? 1 : 0));
+      if (firstKey != null) {
+        firstKey.writeTo(buffer);
+        lastKey.writeTo(buffer);
+      }
+    }
+
+    private static LayerInfo parseFrom(ByteBuffer buffer) {
+      int id = buffer.getInt();
+      int fileNumber = buffer.getInt();
+      long size = buffer.getLong();
+      if (buffer.get() == 0) {
+        return new LayerInfo(id, fileNumber, size, null, null);
+      }
+      Key firstKey = Key.parseFrom(buffer);
+      Key lastKey = Key.parseFrom(buffer);
+      return new LayerInfo(id, fileNumber, size, firstKey, lastKey);
+    }
+  }
+
+  private Manifest(Path path) {
+    this.path = path;
+  }
+
+  /** Returns whether {@code rootDir} has a manifest, which stores written before it lack. */
+  static boolean exists(Path rootDir) {
+    return Files.exists(rootDir.resolve(FILE_NAME));
+  }
+
+  /** Replays the manifest in {@code rootDir}, if there is one. */
+  static Manifest read(Path rootDir) throws KVStoreException {
+    Manifest manifest = new Manifest(rootDir.resolve(FILE_NAME));
+    if (!Files.exists(manifest.path)) {
+      return manifest;
+    }
+    int edits = 0;
+    try (FileChannel channel = FileChannel.open(manifest.path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long version = KVStoreImpl.readFromChannel(channel, 0, 8).getLong();
+      Preconditions.checkState(
+          version >= 1 && version <= CURRENT_VERSION, "invalid manifest version: %s", version);
+      long position = 8;
+      while (position + HEADER_SIZE <= size) {
+        ByteBuffer header = KVStoreImpl.readFromChannel(channel, position, HEADER_SIZE);
+        int length = header.getInt();
+        int expectedCrc = header.getInt();
+        if (length <= 0 || position + HEADER_SIZE + length > size) {
+          break;
+        }
+        ByteBuffer payload =
+            KVStoreImpl.readFromChannel(channel, position + HEADER_SIZE, length);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != expectedCrc) {
+          break;
+        }
+        manifest.replay(payload);
+        edits++;
+        position += HEADER_SIZE + length;
+      }
+      if (position < size) {
+        logger.atWarning().log(
+            "ignoring %d bytes at the end of %s after %d edits",
+            size - position,
+            manifest.path,
+            edits);
+      }
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+    return manifest;
+  }
+
+  private void replay(ByteBuffer payload) {
+    for (int i = payload.getInt(); i > 0; i--) {
+      LayerInfo added = LayerInfo.parseFrom(payload);
+      layers.put(added.fileNumber, added);
+    }
+    for (int i = payload.getInt(); i > 0; i--) {
+      layers.remove(payload.getInt());
+    }
+  }
+
+  /** Returns the live layers, oldest file first. */
+  synchronized ImmutableList<LayerInfo> layers() {
+    return ImmutableList.copyOf(layers.values());
+  }
+
+  synchronized boolean containsLayer(int id) {
+    return layers.values().stream().anyMatch(info -> info.id == id);
+  }
+
+  /**
+   * Adds the layers of a store written before there was a manifest. They only reach the file with
+   * the next {@link #rewrite}, which must be the first write of this manifest.
+   */
+  synchronized void seed(Collection<LayerInfo> legacyLayers) {
+    Preconditions.checkState(channel == null && layers.isEmpty(), "manifest already in use");
+    for (LayerInfo info : legacyLayers) {
+      layers.put(info.fileNumber, info);
+    }
+  }
+
+  /**
+   * Writes a fresh manifest holding just the live layers next to the current one and atomically
+   * replaces it, after which edits get appended to the new file.
+   */
+  synchronized void rewrite() throws KVStoreException {
+    close();
+    Path tempPath = path.resolveSibling(FILE_NAME + "-new");
+    try {
+      channel =
+          FileChannel.open(
+              tempPath,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE);
+      ByteBuffer version = ByteBuffer.allocate(8).putLong(0, CURRENT_VERSION);
+      while (version.hasRemaining()) {
+        channel.write(version);
+      }
+      append(layers.values(), ImmutableList.of());
+      Files.move(
+          tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      syncDirectory();
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+  }
+
+  /** Durably records that {@code added} replace the layers stored in {@code removed}. */
+  synchronized void apply(Collection<LayerInfo> added, Collection<Integer> removed)
+      throws KVStoreException {
+    Preconditions.checkState(channel != null, "manifest not open");
+    if (!added.isEmpty()) {
+      // the files of the added layers, and the value log files they refer to, must not vanish
+      try {
+        syncDirectory();
+      } catch (IOException e) {
+        throw new KVStoreException(e);
+      }
+    }
+    append(added, removed);
+    for (int fileNumber : removed) {
+      layers.remove(fileNumber);
+    }
+    for (LayerInfo info : added) {
+      layers.put(info.fileNumber, info);
+    }
+  }
+
+  private void append(Collection<LayerInfo> added, Collection<Integer> removed)
+      throws KVStoreException {
+    int length = 4 + 4 + 4 * removed.size();
+    for (LayerInfo info : added) {
+      length += info.serializedSize();
+    }
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+    record.position(HEADER_SIZE);
+    record.putInt(added.size());
+    for (LayerInfo info : added) {
+      info.writeTo(record);
+    }
+    record.putInt(removed.size());
+    for (int fileNumber : removed) {
+      record.putInt(fileNumber);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), HEADER_SIZE, length);
+    record.putInt(0, length);
+    record.putInt(4, (int) crc.getValue());
+    record.flip();
+    try {
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+  }
+
+  // makes renames and newly created files in the store's directory durable
+  private void syncDirectory() throws IOException {
+    FileChannel directory;
+    try {
+      directory = FileChannel.open(path.getParent(), StandardOpenOption.READ);
+    } catch (IOException | UnsupportedOperationException e) {
+      // some platforms, Windows among them, can't open directories
+      return;
+    }
+    try (directory) {
+      directory.force(true);
+    }
+  }
+
+  synchronized void close() throws KVStoreException {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        throw new KVStoreException(e);
+      }
+      channel = null;
+    }
+  }
+}
@@ -17,17 +17,29 @@
 package ws.moor.gletscher.kv;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
 
 import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * In-memory layer receiving all writes. It may be read from any number of threads concurrently
+ * with a single writer.
+ *
+ * <p>Values are copied into an {@link OffHeapArena} if given one, otherwise the caller's buffers
+ * are kept as they are. The index only holds a key and a value buffer per entry, the entries handed
+ * out by {@link #keyIterator} are created as they are iterated over.
+ */
 class MemoryLayer extends Layer {
 
-  private final NavigableMap<Key, KeyEntry> keys = new TreeMap<>();
-  private long approximateByteSize = 0;
+  private final ConcurrentNavigableMap<Key, KeyData> keys = new ConcurrentSkipListMap<>();
+  private final AtomicLong approximateByteSize = new AtomicLong();
+  @Nullable private final OffHeapArena arena;
 
   private static class KeyData implements Layer.KeyInfo {
 
@@ -61,41 +73,54 @@ class MemoryLayer extends Layer {
     }
   }
 
-  MemoryLayer(int id) throws KVStoreException {
+  MemoryLayer(int id, @Nullable OffHeapArena arena) throws KVStoreException {
     super(id);
+    this.arena = arena;
   }
 
   @Override
   Iterator<KeyEntry> keyIterator(Key start, boolean inclusive, boolean ascending) {
-    NavigableMap<Key, KeyEntry> map =
+    NavigableMap<Key, KeyData> map =
         ascending ? keys.tailMap(start, inclusive) : keys.headMap(start, inclusive).descendingMap();
 
-    return map.values().iterator();
+    return Iterators.transform(
+        map.entrySet().iterator(), entry -> new KeyEntry(entry.getKey(), entry.getValue()));
   }
 
   void write(Key key, ByteBuffer value) throws KVStoreException {
-    keys.put(key, new KeyEntry(key, KeyData.from(value)));
-    approximateByteSize += key.serializedSize() + value.remaining();
+    ByteBuffer data = arena != null ? arena.copyOf(value) : value;
+    keys.put(key, KeyData.from(data));
+    approximateByteSize.addAndGet(key.serializedSize() + value.remaining());
   }
 
   void delete(Key key) {
-    keys.put(key, new KeyEntry(key, KeyData.DELETED));
-    approximateByteSize += key.serializedSize();
+    keys.put(key, KeyData.DELETED);
+    approximateByteSize.addAndGet(key.serializedSize());
   }
 
   @Override
   @Nullable
   KeyInfo find(Key key) {
-    KeyEntry keyEntry = keys.get(key);
-    return keyEntry != null ? keyEntry.info : null;
+    return keys.get(key);
   }
 
   @Override
-  void close() {
-    throw new UnsupportedOperationException();
+  @Nullable
+  Key firstKey() {
+    // keys are never removed, so the layer can't become empty in between
+    return keys.isEmpty() ? null : keys.firstKey();
   }
 
+  @Override
+  @Nullable
+  Key lastKey() {
+    return keys.isEmpty() ? null : keys.lastKey();
+  }
+
+  @Override
+  void close() {}
+
   long getApproximateByteSize() {
-    return approximateByteSize;
+    return approximateByteSize.get();
   }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Copies the values of a memory layer into direct buffers, so they don't take up heap space or get
+ * scanned by the garbage collector. Only the small buffer views pointing into them live on the
+ * heap.
+ *
+ * <p>Small values share large chunks. Larger ones, like the blocks a cache stores, get a buffer of
+ * their own, so chunks don't end up mostly empty.
+ *
+ * <p>Like its memory layer, it must only be written to by one thread at a time. Buffers are never
+ * freed explicitly: they go away with the last view into them, which may outlive the layer. They
+ * are only released by the garbage collector, so they count against {@code
+ * -XX:MaxDirectMemorySize} until then.
+ */
+final class OffHeapArena {
+  static final int CHUNK_SIZE = 4 << 20;
+  // larger values get a buffer of their own
+  static final int MAX_SHARED_SIZE = CHUNK_SIZE / 16;
+
+  @Nullable private ByteBuffer chunk;
+
+  ByteBuffer copyOf(ByteBuffer value) {
+    int size = value.remaining();
+    ByteBuffer copy;
+    if (size > MAX_SHARED_SIZE) {
+      copy = ByteBuffer.allocateDirect(size);
+    } else {
+      if (chunk == null || chunk.remaining() < size) {
+        chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+      }
+      copy = chunk.slice(chunk.position(), size);
+      chunk.position(chunk.position() + size);
+    }
+    copy.put(value.duplicate());
+    copy.flip();
+    return copy;
+  }
+}
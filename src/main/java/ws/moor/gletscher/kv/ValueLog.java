@@ -0,0 +1,234 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only {@code blob-NNNNNN} files holding large values outside of the disk layers, which only
+ * keep {@link BlockLocation.Type#BLOB} references to them. Compactions copy the references rather
+ * than the values.
+ *
+ * <p>The value log keeps track of how many bytes of each file are referenced by open disk layers. A
+ * file nobody references anymore is deleted, one that is mostly garbage is a candidate for having
+ * its remaining values relocated by a compaction.
+ */
+final class ValueLog {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final long MAX_FILE_SIZE = 256 << 20;
+
+  private final Path rootDir;
+  private final boolean memoryMapped;
+  private final Map<Integer, BlobFile> files = new ConcurrentHashMap<>();
+
+  // only written to by the store's flushes and compactions, which don't run concurrently
+  @Nullable private volatile BlobFile current = null;
+  private int nextId = 0;
+  private boolean closed = false; // guarded by the value log
+
+  private static final class BlobFile {
+    final int id;
+    final Path path;
+    final FileChannel channel;
+    volatile long size;
+    @Nullable volatile MappedByteBuffer mapping;
+    long referencedBytes = 0; // guarded by the value log
+
+    BlobFile(int id, Path path, FileChannel channel, long size) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+      this.size = size;
+    }
+  }
+
+  ValueLog(Path rootDir, boolean memoryMapped) {
+    this.rootDir = rootDir;
+    this.memoryMapped = memoryMapped;
+  }
+
+  void open() throws KVStoreException {
+    try (Stream<Path> paths = Files.list(rootDir)) {
+      for (Path path :
+          paths
+              .filter(p -> p.getFileName().toString().startsWith("blob-"))
+              .collect(Collectors.toList())) {
+        int id = Integer.parseInt(path.getFileName().toString().substring("blob-".length()), 10);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        BlobFile file = new BlobFile(id, path, channel, channel.size());
+        map(file);
+        files.put(id, file);
+        nextId = Math.max(nextId, id + 1);
+      }
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+  }
+
+  /** Appends a value and returns its location. */
+  BlockLocation append(ByteBuffer value) throws KVStoreException {
+    int size = value.remaining();
+    try {
+      if (current == null || (current.size > 0 && current.size + size > MAX_FILE_SIZE)) {
+        roll();
+      }
+      long offset = current.size;
+      ByteBuffer data = value.duplicate();
+      while (data.hasRemaining()) {
+        current.channel.write(data, offset + data.position() - value.position());
+      }
+      current.size = offset + size;
+      return new BlockLocation(BlockLocation.Type.BLOB, null, current.id, offset, size);
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+  }
+
+  private void roll() throws IOException {
+    if (current != null) {
+      // sync() only gets to see the file being appended to
+      current.channel.force(false);
+      map(current);
+    }
+    int id = nextId++;
+    Path path = rootDir.resolve(String.format("blob-%06d", id));
+    FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    current = new BlobFile(id, path, channel, 0);
+    files.put(id, current);
+  }
+
+  // files are only mapped once nothing gets appended to them anymore
+  private void map(BlobFile file) throws IOException {
+    if (memoryMapped && file.size > 0) {
+      try {
+        file.mapping = file.channel.map(FileChannel.MapMode.READ_ONLY, 0, file.size);
+      } catch (UnsupportedOperationException e) {
+        // fall back to reading through the channel
+      }
+    }
+  }
+
+  void sync() throws KVStoreException {
+    if (current != null) {
+      try {
+        current.channel.force(false);
+      } catch (IOException e) {
+        throw new KVStoreException(e);
+      }
+    }
+  }
+
+  ByteBuffer read(int id, long offset, int size) throws KVStoreException {
+    BlobFile file = files.get(id);
+    Preconditions.checkState(file != null, "missing value log file %s", id);
+    MappedByteBuffer mapping = file.mapping;
+    if (mapping != null) {
+      return mapping.slice((int) offset, size);
+    }
+    return KVStoreImpl.readFromChannel(file.channel, offset, size);
+  }
+
+  synchronized void addReferences(Map<Integer, Long> references) {
+    references.forEach(
+        (id, bytes) -> {
+          BlobFile file = files.get(id);
+          Preconditions.checkState(file != null, "missing value log file %s", id);
+          file.referencedBytes += bytes;
+        });
+  }
+
+  synchronized void removeReferences(Map<Integer, Long> references) {
+    if (closed) {
+      // layers being closed along with the store
+      return;
+    }
+    references.forEach(
+        (id, bytes) -> {
+          BlobFile file = files.get(id);
+          file.referencedBytes -= bytes;
+          if (file.referencedBytes == 0 && file != current) {
+            delete(file);
+          }
+        });
+  }
+
+  /** Deletes all files no open layer references, except the one being appended to. */
+  synchronized void deleteUnreferenced() {
+    for (BlobFile file : files.values()) {
+      if (file.referencedBytes == 0 && file != current) {
+        delete(file);
+      }
+    }
+  }
+
+  Set<Integer> fileIds() {
+    return ImmutableSet.copyOf(files.keySet());
+  }
+
+  /** Returns the ids of files of which less than {@code liveRatio} is still referenced. */
+  synchronized Map<Integer, Double> findGarbage(double liveRatio) {
+    return files.values().stream()
+        .filter(file -> file != current && file.size > 0)
+        .filter(file -> file.referencedBytes < liveRatio * file.size)
+        .collect(
+            Collectors.toMap(file -> file.id, file -> (double) file.referencedBytes / file.size));
+  }
+
+  private void delete(BlobFile file) {
+    files.remove(file.id);
+    file.mapping = null;
+    try {
+      file.channel.close();
+      Files.deleteIfExists(file.path);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("failed to delete %s", file.path);
+    }
+  }
+
+  synchronized void close() throws KVStoreException {
+    closed = true;
+    try {
+      for (BlobFile file : files.values()) {
+        file.mapping = null;
+        file.channel.close();
+      }
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+    files.clear();
+  }
+}
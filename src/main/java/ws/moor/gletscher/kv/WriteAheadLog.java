@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.FluentLogger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the writes going into a memory layer, so they survive until the layer has
+ * been flushed. Each record is its payload length, a CRC32 of the payload and the payload itself: a
+ * type byte, the key and, for values, the value bytes.
+ *
+ * <p>Records are written in two steps. Their place in the log is reserved by {@link #reserve},
+ * which callers serialize, while {@link #write} fills it in and may run concurrently, so large
+ * values don't hold up other writers. Records only count as written once all records before them
+ * are, so a sync never covers a gap. A record that fails to be written fails the log, as the
+ * records after it could never be replayed, rather than leaving later writers waiting for it.
+ *
+ * <p>Syncing is group committed: a writer waiting for its record to be synced gets it for free if
+ * another writer's sync already covered it.
+ */
+final class WriteAheadLog {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final byte VALUE = 0;
+  private static final byte DELETION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final long PERIODIC_SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Path path;
+  private final FileChannel channel;
+  private final KVStoreOptions.WalSync walSync;
+
+  private final Object syncLock = new Object();
+  private volatile long reservedPosition = 0;
+  private volatile long writtenPosition = 0; // only advanced under syncLock
+  private volatile long syncedPosition = 0;
+  private long lastSyncNanos = System.nanoTime();
+  private boolean closed = false;
+  @Nullable private IOException failure = null; // guarded by syncLock
+
+  /** A record whose place in the log has been reserved. */
+  static final class Record {
+    private final long start;
+    private final long end;
+    private final ByteBuffer header;
+    @Nullable private final ByteBuffer value;
+
+    private Record(long start, ByteBuffer header, @Nullable ByteBuffer value) {
+      this.start = start;
+      this.end = start + header.remaining() + (value != null ? value.remaining() : 0);
+      this.header = header;
+      this.value = value;
+    }
+  }
+
+  private WriteAheadLog(Path path, FileChannel channel, KVStoreOptions.WalSync walSync) {
+    this.path = path;
+    this.channel = channel;
+    this.walSync = walSync;
+  }
+
+  static WriteAheadLog create(Path path, KVStoreOptions.WalSync walSync) throws KVStoreException {
+    try {
+      FileChannel channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.WRITE);
+      return new WriteAheadLog(path, channel, walSync);
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+  }
+
+  /** Reserves the space for a record, {@code value} being null for deletions. */
+  Record reserve(Key key, @Nullable ByteBuffer value) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 1 + key.serializedSize());
+    header.position(HEADER_SIZE);
+    header.put(value != null ? VALUE : DELETION);
+    key.writeTo(header);
+    header.flip();
+    Record record = new Record(reservedPosition, header, value != null ? value.duplicate() : null);
+    reservedPosition = record.end;
+    return record;
+  }
+
+  /**
+   * Writes a reserved record once all records reserved before it have been written. Returns the
+   * position to pass to {@link #sync} for the record to be durable.
+   */
+  long write(Record record) throws KVStoreException {
+    boolean written = false;
+    try {
+      fill(record);
+      synchronized (syncLock) {
+        if (!awaitWritten(record.start)) {
+          throw new KVStoreException(failure);
+        }
+        writtenPosition = record.end;
+        syncLock.notifyAll();
+      }
+      written = true;
+    } catch (IOException e) {
+      abandon(record, e);
+      throw new KVStoreException(e);
+    } finally {
+      if (!written) {
+        abandon(record, null);
+      }
+    }
+    return record.end;
+  }
+
+  /**
+   * Gives up on a reserved record, failing the log for it and all records after it. Writers
+   * waiting for the record to be written fail rather than wait forever.
+   */
+  void abandon(Record record, @Nullable IOException cause) {
+    synchronized (syncLock) {
+      if (failure == null && writtenPosition <= record.start) {
+        failure =
+            cause != null
+                ? cause
+                : new IOException(
+                    String.format("record at %d of %s was never written", record.start, path));
+      }
+      syncLock.notifyAll();
+    }
+  }
+
+  private void fill(Record record) throws IOException {
+    ByteBuffer header = record.header;
+    int valueSize = record.value != null ? record.value.remaining() : 0;
+    CRC32 crc = new CRC32();
+    crc.update(header.array(), HEADER_SIZE, header.limit() - HEADER_SIZE);
+    if (record.value != null) {
+      crc.update(record.value.duplicate());
+    }
+    header.putInt(0, header.limit() - HEADER_SIZE + valueSize);
+    header.putInt(4, (int) crc.getValue());
+
+    long position = record.start;
+    for (ByteBuffer buffer : new ByteBuffer[] {header, record.value}) {
+      while (buffer != null && buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+  }
+
+  /**
+   * Waits until everything before {@code position} is written, returns false if the log failed
+   * before getting there. Not interruptible, as giving up would leave a gap in the log.
+   */
+  private boolean awaitWritten(long position) {
+    boolean interrupted = false;
+    while (writtenPosition < position && failure == null) {
+      try {
+        syncLock.wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return writtenPosition >= position;
+  }
+
+  /** Makes sure everything up to {@code position} is durable, as far as the sync policy asks. */
+  void sync(long position) throws KVStoreException {
+    if (walSync == KVStoreOptions.WalSync.NEVER || syncedPosition >= position) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (closed || syncedPosition >= position) {
+        return;
+      }
+      long now = System.nanoTime();
+      if (walSync == KVStoreOptions.WalSync.PERIODIC
+          && now - lastSyncNanos < PERIODIC_SYNC_INTERVAL_NANOS) {
+        return;
+      }
+      // everything written so far gets synced, not just up to position
+      long syncing = writtenPosition;
+      try {
+        channel.force(false);
+      } catch (IOException e) {
+        throw new KVStoreException(e);
+      }
+      syncedPosition = syncing;
+      lastSyncNanos = now;
+    }
+  }
+
+  /** Closes and removes the log, after its memory layer has been flushed. */
+  void delete() throws KVStoreException {
+    synchronized (syncLock) {
+      // writers may still be filling in records reserved before the layer was sealed, once the
+      // layer is flushed it doesn't matter whether they succeeded
+      if (!awaitWritten(reservedPosition)) {
+        logger.atWarning().withCause(failure).log("deleting failed %s", path);
+      }
+      closed = true;
+      try {
+        channel.close();
+        Files.delete(path);
+      } catch (IOException e) {
+        throw new KVStoreException(e);
+      }
+    }
+  }
+
+  /**
+   * Reads all intact records of the log at {@code path} into {@code layer}. Reading stops at the
+   * first truncated or corrupt record, which is where a crash interrupted the log. Returns the
+   * number of records replayed.
+   */
+  static int replay(Path path, MemoryLayer layer) throws KVStoreException {
+    int records = 0;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long position = 0;
+      while (position + HEADER_SIZE <= size) {
+        ByteBuffer header = KVStoreImpl.readFromChannel(channel, position, HEADER_SIZE);
+        int length = header.getInt();
+        int expectedCrc = header.getInt();
+        if (length <= 0 || position + HEADER_SIZE + length > size) {
+          break;
+        }
+        ByteBuffer payload =
+            KVStoreImpl.readFromChannel(channel, position + HEADER_SIZE, length);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != expectedCrc) {
+          break;
+        }
+
+        byte type = payload.get();
+        Key key = Key.parseFrom(payload);
+        Preconditions.checkState(type == VALUE || type == DELETION, "record type: %s", type);
+        if (type == VALUE) {
+          layer.write(key, payload.slice());
+        } else {
+          layer.delete(key);
+        }
+        records++;
+        position += HEADER_SIZE + length;
+      }
+      if (position < size) {
+        logger.atWarning().log(
+            "ignoring %d bytes at the end of %s after %d records", size - position, path, records);
+      }
+    } catch (IOException e) {
+      throw new KVStoreException(e);
+    }
+    return records;
+  }
+}
@@ -22,6 +22,7 @@ import com.google.common.io.ByteStreams;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -32,20 +33,27 @@ public class Compressor {
   private static final byte[] GZIP_COMPRESSED = new byte[] {1};
 
   private static final int COMPRESSION_PROBE_SIZE = 128 << 10; // 128 KB
+  private static final int GZIP_BUFFER_SIZE = 64 << 10;
 
   public byte[] compress(byte[] data) {
-    byte[] blockInMiddle = pickMiddleBlock(data, COMPRESSION_PROBE_SIZE);
-    byte[] compressed = gzipCompress(blockInMiddle);
-    if (compressed.length < blockInMiddle.length) {
-      if (blockInMiddle.length == data.length) {
-        // we compressed everything
-        return MoreArrays.concatenate(GZIP_COMPRESSED, compressed);
-      } else {
-        return MoreArrays.concatenate(GZIP_COMPRESSED, gzipCompress(data));
+    int probeSize = Math.min(COMPRESSION_PROBE_SIZE, data.length);
+    int probeBegin = (data.length - probeSize) / 2;
+    if (probeSize == data.length) {
+      // the probe covers everything
+      byte[] compressed = gzipCompress(data, 0, data.length);
+      if (compressed.length - GZIP_COMPRESSED.length < data.length) {
+        return compressed;
       }
-    } else {
-      return MoreArrays.concatenate(NOT_COMPRESSED, data);
+    } else if (gzipCompress(data, probeBegin, probeSize).length - GZIP_COMPRESSED.length
+        < probeSize) {
+      return gzipCompress(data, 0, data.length);
     }
+    return uncompressed(data);
+  }
+
+  /** Returns the data as {@link #decompress} expects it, without trying to compress it. */
+  public byte[] uncompressed(byte[] data) {
+    return MoreArrays.concatenate(NOT_COMPRESSED, data);
   }
 
   public byte[] decompress(byte[] data) {
@@ -53,34 +61,42 @@ public class Compressor {
     if (MoreArrays.startsWith(data, NOT_COMPRESSED)) {
       return Arrays.copyOfRange(data, 1, data.length);
     } else if (MoreArrays.startsWith(data, GZIP_COMPRESSED)) {
-      return gzipDecompress(Arrays.copyOfRange(data, 1, data.length));
+      return gzipDecompress(data, 1, data.length - 1);
     } else {
       throw new IllegalArgumentException("unknown compression scheme: " + data[0]);
     }
   }
 
-  private byte[] pickMiddleBlock(byte[] data, int size) {
-    size = Math.min(size, data.length);
-    int begin = (data.length - size) / 2;
-    return Arrays.copyOfRange(data, begin, begin + size);
-  }
-
-  private byte[] gzipDecompress(byte[] data) {
-    try {
-      GZIPInputStream is = new GZIPInputStream(new ByteArrayInputStream(data));
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ByteStreams.copy(is, baos);
-      return baos.toByteArray();
+  /** Decompresses straight into an array sized by the uncompressed length in the gzip trailer. */
+  private byte[] gzipDecompress(byte[] data, int offset, int length) {
+    Preconditions.checkArgument(length >= 4);
+    int end = offset + length;
+    int originalLength =
+        (data[end - 4] & 0xff)
+            | (data[end - 3] & 0xff) << 8
+            | (data[end - 2] & 0xff) << 16
+            | (data[end - 1] & 0xff) << 24;
+    Preconditions.checkArgument(originalLength >= 0, "unexpected gzip size: %s", originalLength);
+    try (InputStream is =
+        new GZIPInputStream(new ByteArrayInputStream(data, offset, length), GZIP_BUFFER_SIZE)) {
+      byte[] result = new byte[originalLength];
+      ByteStreams.readFully(is, result);
+      if (is.read() >= 0) {
+        throw new IOException("gzip stream longer than its trailer claims");
+      }
+      return result;
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private byte[] gzipCompress(byte[] block) {
+  /** Returns the compressed range prefixed with {@link #GZIP_COMPRESSED}. */
+  private byte[] gzipCompress(byte[] data, int offset, int length) {
     try {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      GZIPOutputStream os = new GZIPOutputStream(baos);
-      os.write(block);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2 + 64);
+      baos.write(GZIP_COMPRESSED);
+      GZIPOutputStream os = new GZIPOutputStream(baos, GZIP_BUFFER_SIZE);
+      os.write(data, offset, length);
       os.close();
       return baos.toByteArray();
     } catch (IOException e) {
@@ -52,11 +52,18 @@ public class Cryptor {
 
       Mac mac = Mac.getInstance(MAC_ALGO);
       mac.init(signingKey);
-      byte[] signature = mac.doFinal(plaintext);
-      Preconditions.checkState(signature.length == 32, "odd signature length: " + signature.length);
-
-      byte[] ciphertext = cipher.doFinal(plaintext);
-      return MoreArrays.concatenate(AES_CBC_PKCS5PADDING_HMACSHA256, iv, signature, ciphertext);
+      Preconditions.checkState(
+          mac.getMacLength() == 32, "odd signature length: " + mac.getMacLength());
+
+      // Everything is written into a single array of the final size.
+      int ciphertextLength = cipher.getOutputSize(plaintext.length);
+      byte[] result = new byte[49 + ciphertextLength];
+      result[0] = AES_CBC_PKCS5PADDING_HMACSHA256[0];
+      System.arraycopy(iv, 0, result, 1, 16);
+      mac.update(plaintext);
+      mac.doFinal(result, 17);
+      int written = cipher.doFinal(plaintext, 0, plaintext.length, result, 49);
+      return written == ciphertextLength ? result : Arrays.copyOf(result, 49 + written);
     } catch (GeneralSecurityException e) {
       throw new RuntimeException(e);
     }
@@ -76,8 +83,7 @@ public class Cryptor {
         mac.init(signingKey);
         byte[] expectedSignature = mac.doFinal(plaintext);
 
-        byte[] actualSignature = Arrays.copyOfRange(ciphertext, 17, 49);
-        if (!Arrays.equals(expectedSignature, actualSignature)) {
+        if (!Arrays.equals(expectedSignature, 0, 32, ciphertext, 17, 49)) {
           throw new IllegalArgumentException("expected signature does not match actual one");
         }
 
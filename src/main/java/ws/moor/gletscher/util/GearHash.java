@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Gear hash chunker with normalized chunking as described in "FastCDC: a Fast and Efficient
+ * Content-Defined Chunking Approach for Data Deduplication" (Xia et al., USENIX ATC '16).
+ *
+ * <p>The first {@code minSize} bytes of a block are skipped entirely. Up to {@code avgSize} a
+ * cut needs two more zero bits than the average implies, past it two fewer, which narrows the
+ * block size distribution around {@code avgSize}.
+ */
+class GearHash {
+
+  // Never change the seed or the generator, doing so moves every cut point and defeats dedup
+  // against existing backups.
+  private static final long GEAR_SEED = 0x676c657473636865L;
+  private static final long[] GEAR = new long[256];
+
+  // the masks need at least two bits below the average's
+  static final int MIN_AVG_SIZE = 64;
+
+  static {
+    long state = GEAR_SEED;
+    for (int i = 0; i < GEAR.length; i++) {
+      state += 0x9e3779b97f4a7c15L;
+      long z = state;
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  private final int minSize;
+  private final int avgSize;
+  // The masks select the highest bits, which depend on the last 64 bytes rather than only on
+  // the last few as the lowest bits would.
+  private final long smallMask;
+  private final long largeMask;
+
+  private long fingerprint = 0;
+
+  GearHash(int minSize, int avgSize) {
+    Preconditions.checkArgument(minSize >= 0, "min size must not be negative: %s", minSize);
+    Preconditions.checkArgument(
+        avgSize >= MIN_AVG_SIZE && Integer.bitCount(avgSize) == 1,
+        "average size must be a power of two of at least %s: %s",
+        MIN_AVG_SIZE,
+        avgSize);
+    this.minSize = minSize;
+    this.avgSize = avgSize;
+    int bits = Integer.numberOfTrailingZeros(avgSize);
+    this.smallMask = -1L << (64 - (bits + 2));
+    this.largeMask = -1L << (64 - (bits - 2));
+  }
+
+  /**
+   * Feeds {@code data[from, to)} of the block starting at {@code start} to the hash. Returns the
+   * exclusive end of the block if a cut point was found, or -1 otherwise.
+   */
+  int update(byte[] data, int start, int from, int to) {
+    long fp = fingerprint;
+    int i = (int) Math.max(from, (long) start + minSize);
+    int normalEnd = (int) Math.min(to, (long) start + avgSize);
+    for (; i < normalEnd; i++) {
+      fp = (fp << 1) + GEAR[data[i] & 0xff];
+      if ((fp & smallMask) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < to; i++) {
+      fp = (fp << 1) + GEAR[data[i] & 0xff];
+      if ((fp & largeMask) == 0) {
+        return i + 1;
+      }
+    }
+    fingerprint = fp;
+    return -1;
+  }
+
+  void reset() {
+    fingerprint = 0;
+  }
+}
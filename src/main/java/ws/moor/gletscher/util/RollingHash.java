@@ -30,7 +30,16 @@ class RollingHash {
   private static final int MASK = 0xffffff;
   private static final int ADLER_MASK = 0x3fffff;
 
-  private final int[] buffer = new int[BUFFER_SIZE];
+  // The lowest 8 bits of adler32() are A's lowest 8 bits xor'ed with B's bits 16 to 23 reversed.
+  private static final int[] REVERSED_BYTES = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      REVERSED_BYTES[i] = Integer.reverse(i) >>> 24;
+    }
+  }
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
   private int next = 0;
 
   private int A = A_INIT;
@@ -38,9 +47,9 @@ class RollingHash {
 
   public boolean update(int add) {
     Preconditions.checkArgument(0 <= add && add < 256);
-    int drop = buffer[next];
+    int drop = buffer[next] & 0xff;
 
-    buffer[next] = add;
+    buffer[next] = (byte) add;
     A = (A + add - drop) & MASK;
     B = (B + A - drop * BUFFER_SIZE - A_INIT) & MASK;
 
@@ -49,6 +58,41 @@ class RollingHash {
     return adler32() == 0;
   }
 
+  /**
+   * Feeds {@code data[from, to)} into the hash, stopping early at the first byte after which the
+   * hash hits a boundary (as {@link #update(int)} would have returned {@code true}).
+   *
+   * @return the index just past that byte, or -1 if no boundary was found
+   */
+  int update(byte[] data, int from, int to) {
+    final byte[] buffer = this.buffer;
+    int a = A;
+    int b = B;
+    int n = next;
+    int result = -1;
+    for (int i = from; i < to; i++) {
+      int add = data[i] & 0xff;
+      int drop = buffer[n] & 0xff;
+
+      buffer[n] = data[i];
+      a = (a + add - drop) & MASK;
+      b = (b + a - drop * BUFFER_SIZE - A_INIT) & MASK;
+
+      n = (n + 1) & BUFFER_MODULO_MASK;
+
+      // Cheap check on the lowest 8 bits first, only 1 in 256 bytes needs the full comparison.
+      if ((a & 0xff) == REVERSED_BYTES[b >>> 16]
+          && ((a ^ Integer.reverse(b << 8)) & ADLER_MASK) == 0) {
+        result = i + 1;
+        break;
+      }
+    }
+    A = a;
+    B = b;
+    next = n;
+    return result;
+  }
+
   int adler32() {
     int B_rev = Integer.reverse(B << 8);
     return (A ^ B_rev) & ADLER_MASK;
@@ -85,7 +129,7 @@ class RollingHash {
   }
 
   public void reset() {
-    Arrays.fill(buffer, 0);
+    Arrays.fill(buffer, (byte) 0);
     next = 0;
     A = A_INIT;
     B = B_INIT;
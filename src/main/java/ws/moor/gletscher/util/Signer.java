@@ -20,6 +20,7 @@ import ws.moor.gletscher.blocks.Signature;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
 public class Signer {
@@ -38,6 +39,12 @@ public class Signer {
     return Signature.finalizeMac(mac);
   }
 
+  public Signature computeSignature(ByteBuffer data) {
+    Mac mac = buildMac();
+    mac.update(data.duplicate());
+    return Signature.finalizeMac(mac);
+  }
+
   private Mac buildMac() {
     try {
       Mac mac = Mac.getInstance(MAC_ALGO);
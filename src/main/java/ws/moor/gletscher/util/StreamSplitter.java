@@ -16,21 +16,43 @@
 
 package ws.moor.gletscher.util;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.AbstractIterator;
 
+import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Iterator;
 
 public abstract class StreamSplitter {
 
+  private static final int INITIAL_BUFFER_SIZE = 64 << 10;
+  private static final int SCAN_BUFFER_SIZE = 64 << 10;
+  private static final long MAPPING_SIZE = 1L << 30;
+
+  /** Smallest {@code avgBlockSize} {@link #fastCdcSplitter} accepts. */
+  public static final int MIN_AVG_BLOCK_SIZE = GearHash.MIN_AVG_SIZE;
+
   public static StreamSplitter rollingHashSplitter(int maxBlockSize) {
     return new RollingHashStreamSplitter(maxBlockSize);
   }
 
+  /**
+   * Returns a FastCDC gear hash splitter producing blocks of at least {@code minBlockSize} bytes
+   * (except for the last), around {@code avgBlockSize} bytes on average and at most {@code
+   * maxBlockSize} bytes. {@code avgBlockSize} must be a power of two of at least {@link
+   * #MIN_AVG_BLOCK_SIZE}.
+   */
+  public static StreamSplitter fastCdcSplitter(int minBlockSize, int avgBlockSize, int maxBlockSize) {
+    return new FastCdcStreamSplitter(minBlockSize, avgBlockSize, maxBlockSize);
+  }
+
   public static StreamSplitter fixedSizeSplitter(int maxBlockSize) {
     return new FixedSizeStreamSplitter(maxBlockSize);
   }
@@ -43,57 +65,193 @@ public abstract class StreamSplitter {
 
   public abstract Iterator<byte[]> split(InputStream is);
 
+  /**
+   * Splits the file behind {@code channel} into read-only slices of memory mappings of at most
+   * 1 GiB each, producing the same blocks as {@link #split(InputStream)}. Block contents are
+   * never copied, only a small scan buffer is used for finding cut points. Mappings remain valid
+   * after the channel is closed. The first mapping is made right away, the iterator only fails
+   * with an {@link InternalError} if the file shrinks while being split.
+   *
+   * @throws UnsupportedOperationException on file systems not supporting memory mapped files
+   */
+  public Iterator<ByteBuffer> split(FileChannel channel) throws IOException {
+    return split(channel, MAPPING_SIZE);
+  }
+
+  Iterator<ByteBuffer> split(FileChannel channel, long mappingSize) throws IOException {
+    MappedSplitIterator iterator =
+        new MappedSplitIterator(channel, channel.size(), mappingSize, newChunker());
+    iterator.ensureMapped(Math.min(channel.size(), maxBlockSize));
+    return iterator;
+  }
+
+  /** Returns a new chunker finding content-defined cut points, or null to cut at the maximum size. */
+  @Nullable
+  abstract Chunker newChunker();
+
   public int getMaxBlockSize() {
     return maxBlockSize;
   }
 
-  private static final class RollingHashStreamSplitter extends StreamSplitter {
+  /** Finds content-defined cut points in a buffer, see {@link ContentDefinedStreamSplitter}. */
+  private interface Chunker {
 
-    RollingHashStreamSplitter(int maxBlockSize) {
+    /**
+     * Scans {@code buffer[from, to)} of the block starting at {@code start}, all bytes before
+     * {@code from} have been scanned already. Returns the exclusive end of the block if a cut
+     * point was found, or -1 otherwise.
+     */
+    int findCut(byte[] buffer, int start, int from, int to);
+
+    /** Called whenever a block was cut, whether at a cut point or at the maximum block size. */
+    void reset();
+  }
+
+  private abstract static class ContentDefinedStreamSplitter extends StreamSplitter {
+
+    ContentDefinedStreamSplitter(int maxBlockSize) {
       super(maxBlockSize);
     }
 
     @Override
     public Iterator<byte[]> split(InputStream is) {
-      return new SplitIterator(new BufferedInputStream(is, 1 << 20));
+      return new SplitIterator(is, newChunker());
     }
 
+    /**
+     * Reads the stream in bulk into a buffer holding the current block at {@code [start, end)}
+     * and hands newly read bytes to the chunker in one go. Blocks are copied out of the buffer
+     * exactly once.
+     */
     private final class SplitIterator extends AbstractIterator<byte[]> {
 
       private final InputStream is;
-      private final RollingHash rollingHash;
-      private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(32 << 10);
+      private final Chunker chunker;
+      private byte[] buffer = new byte[Math.min(maxBlockSize, INITIAL_BUFFER_SIZE)];
+      private int start = 0;
+      private int scanned = 0;
+      private int end = 0;
+      private boolean eof = false;
 
-      private SplitIterator(InputStream is) {
+      private SplitIterator(InputStream is, Chunker chunker) {
         this.is = is;
-        this.rollingHash = new RollingHash();
+        this.chunker = chunker;
       }
 
       @Override
       protected byte[] computeNext() {
         try {
-          int value = is.read();
-          if (value < 0) {
-            is.close();
-            return endOfData();
-          }
+          while (true) {
+            if (scanned < end) {
+              int cut = chunker.findCut(buffer, start, scanned, end);
+              if (cut >= 0) {
+                return takeBlock(cut);
+              }
+              scanned = end;
+            }
 
-          while (value >= 0) {
-            buffer.write(value);
-            if (rollingHash.update(value) || buffer.size() == maxBlockSize) {
-              rollingHash.reset();
-              break;
+            if (end - start == maxBlockSize) {
+              return takeBlock(end);
+            } else if (eof) {
+              if (start == end) {
+                is.close();
+                return endOfData();
+              }
+              return takeBlock(end);
             }
-            value = is.read();
+            fill();
           }
-
-          byte[] result = buffer.toByteArray();
-          buffer.reset();
-          return result;
         } catch (IOException e) {
           throw new RuntimeException(e);
         }
       }
+
+      private byte[] takeBlock(int cut) {
+        byte[] result = Arrays.copyOfRange(buffer, start, cut);
+        chunker.reset();
+        start = cut;
+        scanned = cut;
+        return result;
+      }
+
+      private void fill() throws IOException {
+        if (end == buffer.length) {
+          if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            scanned -= start;
+            end -= start;
+            start = 0;
+          } else {
+            buffer = Arrays.copyOf(buffer, Math.min(maxBlockSize, 2 * buffer.length));
+          }
+        }
+
+        int read = is.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+          eof = true;
+        } else {
+          end += read;
+        }
+      }
+    }
+  }
+
+  private static final class RollingHashStreamSplitter extends ContentDefinedStreamSplitter {
+
+    RollingHashStreamSplitter(int maxBlockSize) {
+      super(maxBlockSize);
+    }
+
+    @Override
+    Chunker newChunker() {
+      RollingHash rollingHash = new RollingHash();
+      return new Chunker() {
+        @Override
+        public int findCut(byte[] buffer, int start, int from, int to) {
+          return rollingHash.update(buffer, from, to);
+        }
+
+        @Override
+        public void reset() {
+          rollingHash.reset();
+        }
+      };
+    }
+  }
+
+  private static final class FastCdcStreamSplitter extends ContentDefinedStreamSplitter {
+
+    private final int minBlockSize;
+    private final int avgBlockSize;
+
+    FastCdcStreamSplitter(int minBlockSize, int avgBlockSize, int maxBlockSize) {
+      super(maxBlockSize);
+      Preconditions.checkArgument(
+          minBlockSize <= avgBlockSize && avgBlockSize <= maxBlockSize,
+          "expected min <= avg <= max block size: %s, %s, %s",
+          minBlockSize,
+          avgBlockSize,
+          maxBlockSize);
+      Preconditions.checkArgument(
+          Integer.bitCount(avgBlockSize) == 1, "average block size must be a power of two");
+      this.minBlockSize = minBlockSize;
+      this.avgBlockSize = avgBlockSize;
+    }
+
+    @Override
+    Chunker newChunker() {
+      GearHash gearHash = new GearHash(minBlockSize, avgBlockSize);
+      return new Chunker() {
+        @Override
+        public int findCut(byte[] buffer, int start, int from, int to) {
+          return gearHash.update(buffer, start, from, to);
+        }
+
+        @Override
+        public void reset() {
+          gearHash.reset();
+        }
+      };
     }
   }
 
@@ -103,6 +261,11 @@ public abstract class StreamSplitter {
       super(maxBlockSize);
     }
 
+    @Override
+    Chunker newChunker() {
+      return null;
+    }
+
     @Override
     public Iterator<byte[]> split(InputStream is) {
       return new SplitIterator(new BufferedInputStream(is, 1 << 20));
@@ -142,4 +305,72 @@ public abstract class StreamSplitter {
       }
     }
   }
+
+  /**
+   * Walks a file through memory mappings. A new mapping is started at the beginning of the first
+   * block not fully contained in the current one. Bytes are copied into a scan buffer for the
+   * chunker only, blocks are returned as slices of the mapping.
+   */
+  private final class MappedSplitIterator extends AbstractIterator<ByteBuffer> {
+
+    private final FileChannel channel;
+    private final long size;
+    private final long mappingSize;
+    @Nullable private final Chunker chunker;
+    private final byte[] scanBuffer;
+    private MappedByteBuffer mapping = null;
+    private long mappingStart = 0;
+    private long start = 0;
+
+    private MappedSplitIterator(
+        FileChannel channel, long size, long mappingSize, @Nullable Chunker chunker) {
+      this.channel = channel;
+      this.size = size;
+      this.mappingSize = mappingSize;
+      this.chunker = chunker;
+      this.scanBuffer = chunker == null ? null : new byte[SCAN_BUFFER_SIZE];
+    }
+
+    @Override
+    protected ByteBuffer computeNext() {
+      if (start >= size) {
+        return endOfData();
+      }
+      long limit = Math.min(size, start + maxBlockSize);
+      try {
+        ensureMapped(limit);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+
+      long cut = limit;
+      if (chunker != null) {
+        long scanned = start;
+        while (scanned < limit) {
+          int length = (int) Math.min(scanBuffer.length, limit - scanned);
+          mapping.get((int) (scanned - mappingStart), scanBuffer, 0, length);
+          int found = chunker.findCut(scanBuffer, (int) (start - scanned), 0, length);
+          if (found >= 0) {
+            cut = scanned + found;
+            break;
+          }
+          scanned += length;
+        }
+        chunker.reset();
+      }
+
+      ByteBuffer block =
+          mapping.slice((int) (start - mappingStart), (int) (cut - start)).asReadOnlyBuffer();
+      start = cut;
+      return block;
+    }
+
+    private void ensureMapped(long limit) throws IOException {
+      if (mapping == null || limit > mappingStart + mapping.capacity()) {
+        long length = Math.min(size - start, Math.max(mappingSize, maxBlockSize));
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        mappingStart = start;
+      }
+    }
+  }
 }
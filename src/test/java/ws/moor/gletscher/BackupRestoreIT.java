@@ -178,6 +178,7 @@ public class BackupRestoreIT {
     Files.createDirectories(root);
 
     List<String> names = new ArrayList<>();
+    List<byte[]> contents = new ArrayList<>();
 
     Random rnd = new Random();
     int numFiles = 1 + rnd.nextInt(Math.max(2, 10 - maxLevels));
@@ -185,7 +186,12 @@ public class BackupRestoreIT {
       String name = createRandomFileName(rnd);
       names.add(name);
       Path path = root.resolve(name);
-      byte[] data = MoreArrays.randomBytes(rnd, rnd.nextInt(128 << 10));
+      // some files share their blocks with another one
+      byte[] data =
+          !contents.isEmpty() && rnd.nextInt(4) == 0
+              ? contents.get(rnd.nextInt(contents.size()))
+              : MoreArrays.randomBytes(rnd, rnd.nextInt(128 << 10));
+      contents.add(data);
 
       Files.write(path, data, StandardOpenOption.CREATE_NEW);
     }
@@ -20,13 +20,18 @@ import com.google.common.jimfs.Jimfs;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import ws.moor.gletscher.cloud.RoundTripVerifier;
+import ws.moor.gletscher.kv.KVStoreOptions;
 
+import java.io.ByteArrayInputStream;
 import java.nio.file.FileSystem;
+import java.util.Iterator;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static com.google.common.jimfs.Configuration.unix;
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
 
 @RunWith(JUnit4.class)
 public class ConfigurationTest {
@@ -74,4 +79,107 @@ public class ConfigurationTest {
         .containsExactly("\\.DS_Store$", "\\.fseventsd$", "^\\Q/tmp/cache.dir\\E$");
     assertThat(config.getCatalogPathMapping()).containsExactly("a", "b", "b", "c");
   }
+
+  @Test
+  public void testFastCdcSplitter() {
+    FileSystem fs = Jimfs.newFileSystem(unix());
+    Configuration config =
+        Configuration.fromLines(
+            fs,
+            "version: 1",
+            "max_split_size: 65536",
+            "avg_split_size: 8192",
+            "min_split_size: 1024",
+            "split_algorithm: fastcdc");
+
+    assertThat(config.getStreamSplitter().getMaxBlockSize()).isEqualTo(65536);
+  }
+
+  @Test
+  public void testFastCdcSplitterDefaultsForSmallMaxSize() {
+    FileSystem fs = Jimfs.newFileSystem(unix());
+    Configuration config =
+        Configuration.fromLines(
+            fs, "version: 1", "max_split_size: 128", "split_algorithm: fastcdc");
+
+    Iterator<byte[]> blocks =
+        config.getStreamSplitter().split(new ByteArrayInputStream(new byte[1000]));
+    int total = 0;
+    while (blocks.hasNext()) {
+      byte[] block = blocks.next();
+      assertThat(block.length).isAtMost(128);
+      total += block.length;
+    }
+    assertThat(total).isEqualTo(1000);
+  }
+
+  @Test
+  public void testUploadVerification() {
+    FileSystem fs = Jimfs.newFileSystem(unix());
+    assertThat(Configuration.fromLines(fs, "version: 1").newUploadVerifier().getMode())
+        .isEqualTo(RoundTripVerifier.Mode.ALWAYS);
+    assertThat(
+            Configuration.fromLines(fs, "version: 1", "upload_verification: never")
+                .newUploadVerifier()
+                .getMode())
+        .isEqualTo(RoundTripVerifier.Mode.NEVER);
+
+    RoundTripVerifier sampled =
+        Configuration.fromLines(
+                fs, "version: 1", "upload_verification: sampled", "upload_verification_rate: 4")
+            .newUploadVerifier();
+    assertThat(sampled.getMode()).isEqualTo(RoundTripVerifier.Mode.SAMPLED);
+    assertThat(sampled.getRate()).isEqualTo(4);
+  }
+
+  @Test
+  public void testCacheShards() {
+    FileSystem fs = Jimfs.newFileSystem(unix());
+    Configuration config = Configuration.fromLines(fs, "version: 1");
+    assertThat(config.getCacheShardCount()).isEqualTo(1);
+    assertThat(config.getCacheThreadCount()).isEqualTo(1);
+
+    config = Configuration.fromLines(fs, "version: 1", "cache_shards: 8");
+    assertThat(config.getCacheShardCount()).isEqualTo(8);
+    assertThat(config.getCacheThreadCount()).isEqualTo(8);
+
+    config = Configuration.fromLines(fs, "version: 1", "cache_shards: 8", "cache_threads: 2");
+    assertThat(config.getCacheThreadCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testCacheMaxSize() {
+    FileSystem fs = Jimfs.newFileSystem(unix());
+    assertThat(Configuration.fromLines(fs, "version: 1").getCacheMaxSize()).isEqualTo(0);
+    assertThat(Configuration.fromLines(fs, "version: 1", "cache_max_size_mb: 4096").getCacheMaxSize())
+        .isEqualTo(4096L << 20);
+  }
+
+  @Test
+  public void testCacheWalSync() {
+    FileSystem fs = Jimfs.newFileSystem(unix());
+    assertThat(Configuration.fromLines(fs, "version: 1").getCacheStoreOptions().walSync)
+        .isEqualTo(KVStoreOptions.WalSync.PERIODIC);
+    assertThat(
+            Configuration.fromLines(fs, "version: 1", "cache_wal_sync: always")
+                .getCacheStoreOptions()
+                .walSync)
+        .isEqualTo(KVStoreOptions.WalSync.ALWAYS);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> Configuration.fromLines(fs, "version: 1", "cache_wal_sync: sometimes")
+            .getCacheStoreOptions());
+  }
+
+  @Test
+  public void testCacheOffHeap() {
+    FileSystem fs = Jimfs.newFileSystem(unix());
+    assertThat(Configuration.fromLines(fs, "version: 1").getCacheStoreOptions().offHeapMemoryLayers)
+        .isTrue();
+    assertThat(
+            Configuration.fromLines(fs, "version: 1", "cache_off_heap: false")
+                .getCacheStoreOptions()
+                .offHeapMemoryLayers)
+        .isFalse();
+  }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.blocks;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import ws.moor.gletscher.cloud.CloudFileStorage;
+import ws.moor.gletscher.cloud.testing.InMemoryCloudFileStorage;
+
+import java.util.Iterator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(JUnit4.class)
+public class BlockExistenceCheckerTest {
+
+  private CountingStorage storage;
+  private BlockExistenceChecker checker;
+
+  @Before
+  public void setUp() {
+    storage = new CountingStorage();
+    checker = new BlockExistenceChecker(storage, MoreExecutors.directExecutor(), 3);
+    for (int i = 0; i < 5; i++) {
+      storage.store(
+          BlockStore.toFileName(existing(i)),
+          new byte[0],
+          HashCode.fromInt(0),
+          ImmutableMap.of(),
+          CloudFileStorage.StoreOptions.DEFAULT);
+    }
+  }
+
+  @Test
+  public void listsPrefixAfterEnoughMisses() throws Exception {
+    assertThat(checker.exists(existing(0)).get()).isTrue();
+    assertThat(checker.exists(missing(0)).get()).isFalse();
+    assertThat(checker.exists(missing(1)).get()).isFalse();
+    assertThat(storage.listCount).isEqualTo(0);
+    assertThat(checker.exists(missing(2)).get()).isFalse();
+    assertThat(storage.existsCount).isEqualTo(4);
+    assertThat(storage.listCount).isEqualTo(1);
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(checker.exists(existing(i)).get()).isTrue();
+      assertThat(checker.exists(missing(i)).get()).isFalse();
+    }
+    assertThat(storage.existsCount).isEqualTo(4);
+    assertThat(storage.listCount).isEqualTo(1);
+
+    // other prefixes are unaffected
+    assertThat(checker.exists(block("0002", 0)).get()).isFalse();
+    assertThat(storage.existsCount).isEqualTo(5);
+  }
+
+  @Test
+  public void storedBlocksExist() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      assertThat(checker.exists(missing(i)).get()).isFalse();
+    }
+    assertThat(storage.listCount).isEqualTo(1);
+
+    checker.stored(missing(0));
+    assertThat(checker.exists(missing(0)).get()).isTrue();
+    assertThat(checker.exists(missing(1)).get()).isFalse();
+  }
+
+  @Test
+  public void fallsBackToExistsIfListingFails() throws Exception {
+    storage.failListing = true;
+    for (int i = 0; i < 3; i++) {
+      assertThat(checker.exists(missing(i)).get()).isFalse();
+    }
+    assertThat(storage.listCount).isEqualTo(1);
+
+    assertThat(checker.exists(existing(1)).get()).isTrue();
+    assertThat(checker.exists(missing(3)).get()).isFalse();
+    assertThat(storage.existsCount).isEqualTo(5);
+    assertThat(storage.listCount).isEqualTo(1);
+
+    // enough misses list the prefix again
+    storage.failListing = false;
+    for (int i = 4; i < 6; i++) {
+      assertThat(checker.exists(missing(i)).get()).isFalse();
+    }
+    assertThat(storage.listCount).isEqualTo(2);
+    assertThat(checker.exists(existing(2)).get()).isTrue();
+    assertThat(checker.exists(missing(6)).get()).isFalse();
+    assertThat(storage.existsCount).isEqualTo(7);
+  }
+
+  private static PersistedBlock existing(int i) {
+    return block("0001", i);
+  }
+
+  private static PersistedBlock missing(int i) {
+    return block("0001", 100 + i);
+  }
+
+  private static PersistedBlock block(String prefix, int i) {
+    // checked by the first eight bytes of the signature, so that's where they differ
+    String signature = String.format("%s%012x", prefix, i) + "0".repeat(48);
+    return new PersistedBlock(Signature.fromString(signature), i);
+  }
+
+  private static class CountingStorage extends InMemoryCloudFileStorage {
+    int existsCount = 0;
+    int listCount = 0;
+    boolean failListing = false;
+
+    CountingStorage() {
+      super(MoreExecutors.newDirectExecutorService());
+    }
+
+    @Override
+    public ListenableFuture<Boolean> exists(String name) {
+      existsCount++;
+      return super.exists(name);
+    }
+
+    @Override
+    public Iterator<FileHeader> listFiles(String prefix, int limit) {
+      listCount++;
+      if (failListing) {
+        throw new IllegalStateException("listing failed");
+      }
+      return super.listFiles(prefix, limit);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.blocks;
+
+import com.google.common.jimfs.Jimfs;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import ws.moor.gletscher.util.MoreArrays;
+import ws.moor.gletscher.util.Signer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.jimfs.Configuration.unix;
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(JUnit4.class)
+public class KnownBlocksIndexTest {
+
+  private final Signer signer = new Signer(new SecretKeySpec(new byte[32], Signer.MAC_ALGO));
+  private final Random rnd = new Random(0);
+  private Path file;
+
+  @Before
+  public void setUp() {
+    file = Jimfs.newFileSystem(unix()).getPath("/known-blocks");
+  }
+
+  @Test
+  public void addAndContains() {
+    KnownBlocksIndex index = KnownBlocksIndex.open(file);
+    List<Signature> signatures = randomSignatures(5000);
+    for (Signature signature : signatures.subList(0, 2500)) {
+      index.add(signature);
+      index.add(signature);
+    }
+
+    for (Signature signature : signatures.subList(0, 2500)) {
+      assertThat(index.contains(signature)).isTrue();
+    }
+    for (Signature signature : signatures.subList(2500, 5000)) {
+      assertThat(index.contains(signature)).isFalse();
+    }
+    assertThat(index.size()).isEqualTo(2500);
+  }
+
+  @Test
+  public void savesAndLoads() throws Exception {
+    KnownBlocksIndex index = KnownBlocksIndex.open(file);
+    List<Signature> signatures = randomSignatures(3000);
+    for (Signature signature : signatures) {
+      index.add(signature);
+    }
+    index.save();
+
+    KnownBlocksIndex loaded = KnownBlocksIndex.open(file);
+    assertThat(loaded.size()).isEqualTo(3000);
+    for (Signature signature : signatures) {
+      assertThat(loaded.contains(signature)).isTrue();
+    }
+    assertThat(loaded.contains(randomSignatures(1).get(0))).isFalse();
+  }
+
+  @Test
+  public void discardsCorruptFile() throws Exception {
+    KnownBlocksIndex index = KnownBlocksIndex.open(file);
+    for (Signature signature : randomSignatures(10)) {
+      index.add(signature);
+    }
+    index.save();
+
+    byte[] contents = Files.readAllBytes(file);
+    contents[20] ^= 1;
+    Files.write(file, contents);
+
+    assertThat(KnownBlocksIndex.open(file).size()).isEqualTo(0);
+  }
+
+  @Test
+  public void reconcileReplacesContents() {
+    KnownBlocksIndex index = KnownBlocksIndex.open(file);
+    List<Signature> signatures = randomSignatures(20);
+    for (Signature signature : signatures.subList(0, 10)) {
+      index.add(signature);
+    }
+
+    index.reconcile(signatures.subList(5, 20));
+    assertThat(index.size()).isEqualTo(15);
+    assertThat(index.contains(signatures.get(0))).isFalse();
+    assertThat(index.contains(signatures.get(5))).isTrue();
+    assertThat(index.contains(signatures.get(19))).isTrue();
+  }
+
+  private List<Signature> randomSignatures(int count) {
+    List<Signature> signatures = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      signatures.add(signer.computeSignature(MoreArrays.randomBytes(rnd, 16)));
+    }
+    return signatures;
+  }
+}
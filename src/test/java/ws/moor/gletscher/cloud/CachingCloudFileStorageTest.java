@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.cloud;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import ws.moor.gletscher.cloud.testing.InMemoryCloudFileStorage;
+import ws.moor.gletscher.kv.KVStore;
+import ws.moor.gletscher.kv.KVStores;
+import ws.moor.gletscher.kv.Key;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+
+import static com.google.common.jimfs.Configuration.unix;
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(JUnit4.class)
+public class CachingCloudFileStorageTest {
+
+  private InMemoryCloudFileStorage inMemoryStorage;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() throws Exception {
+    inMemoryStorage = new InMemoryCloudFileStorage(MoreExecutors.newDirectExecutorService());
+    inMemoryStorage.store(
+        "a",
+        "contents".getBytes(StandardCharsets.UTF_8),
+        HashCode.fromInt(0),
+        ImmutableMap.of(),
+        CloudFileStorage.StoreOptions.DEFAULT);
+    inMemoryStorage.store(
+        "b",
+        new byte[0],
+        HashCode.fromInt(0),
+        ImmutableMap.of(),
+        CloudFileStorage.StoreOptions.DEFAULT);
+    cacheDir = Jimfs.newFileSystem(unix()).getPath("/cache");
+    Files.createDirectories(cacheDir);
+  }
+
+  @Test
+  public void filterAnswersUncachedLookups() throws Exception {
+    CachingCloudFileStorage storage = open();
+    assertThat(storage.get("a").get()).isNotNull();
+    assertThat(storage.exists("b").get()).isTrue();
+    assertThat(storage.exists("c").get()).isFalse();
+    assertThat(storage.getFilterNegativeCount()).isEqualTo(3);
+    assertThat(storage.getCacheHitCount()).isEqualTo(0);
+    storage.close();
+
+    storage = open();
+    assertThat(new String(storage.get("a").get(), StandardCharsets.UTF_8)).isEqualTo("contents");
+    assertThat(storage.exists("a").get()).isTrue();
+    assertThat(storage.exists("b").get()).isTrue();
+    assertThat(storage.exists("c").get()).isFalse();
+    assertThat(storage.getCacheHitCount()).isEqualTo(3);
+    assertThat(storage.getFilterNegativeCount() + storage.getFalsePositiveCount()).isEqualTo(1);
+    storage.close();
+  }
+
+  @Test
+  public void filterTellsContentsFromExistence() throws Exception {
+    CachingCloudFileStorage storage = open();
+    assertThat(storage.exists("a").get()).isTrue();
+    storage.close();
+
+    storage = open();
+    assertThat(storage.exists("a").get()).isTrue();
+    assertThat(new String(storage.get("a").get(), StandardCharsets.UTF_8)).isEqualTo("contents");
+    assertThat(storage.getCacheHitCount()).isEqualTo(1);
+    assertThat(storage.getFilterNegativeCount()).isEqualTo(1);
+    assertThat(storage.getFalsePositiveCount()).isEqualTo(0);
+    ByteArrayOutputStream summary = new ByteArrayOutputStream();
+    storage.printSummary(new PrintStream(summary, true, StandardCharsets.UTF_8));
+    assertThat(summary.toString(StandardCharsets.UTF_8))
+        .isEqualTo("cache lookups: 2, 1 hits, 1 filtered, 0 false positives\n");
+    storage.close();
+  }
+
+  @Test
+  public void rebuildsMissingFilter() throws Exception {
+    CachingCloudFileStorage storage = open();
+    storage.get("a").get();
+    storage.exists("b").get();
+    storage.close();
+
+    // Simulates a crash, the filter is only present after a clean shutdown.
+    try (KVStore kvStore = KVStores.open(cacheDir)) {
+      assertThat(kvStore.contains(Key.fromUtf8("bloom-v2"))).isTrue();
+      kvStore.delete(Key.fromUtf8("bloom-v2"));
+    }
+
+    storage = open();
+    assertThat(storage.get("a").get()).isNotNull();
+    assertThat(storage.exists("b").get()).isTrue();
+    assertThat(storage.getCacheHitCount()).isEqualTo(2);
+    assertThat(storage.getFilterNegativeCount()).isEqualTo(0);
+    storage.close();
+  }
+
+  @Test
+  public void shardsSpreadAcrossSubdirectories() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      inMemoryStorage.store(
+          "file-" + i,
+          new byte[] {(byte) i},
+          HashCode.fromInt(0),
+          ImmutableMap.of(),
+          CloudFileStorage.StoreOptions.DEFAULT);
+    }
+
+    CachingCloudFileStorage storage =
+        new CachingCloudFileStorage(inMemoryStorage, cacheDir, Clock.systemUTC(), 4, 3, 0);
+    for (int i = 0; i < 20; i++) {
+      storage.get("file-" + i).get();
+    }
+    storage.close();
+
+    for (int i = 0; i < 4; i++) {
+      assertThat(Files.isDirectory(cacheDir.resolve("shard-0" + i))).isTrue();
+    }
+    storage = new CachingCloudFileStorage(inMemoryStorage, cacheDir, Clock.systemUTC(), 4, 3, 0);
+    for (int i = 0; i < 20; i++) {
+      assertThat(storage.get("file-" + i).get()).isEqualTo(new byte[] {(byte) i});
+    }
+    assertThat(storage.getCacheHitCount()).isEqualTo(20);
+    storage.close();
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedContents() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      inMemoryStorage.store(
+          "file-" + i,
+          new byte[100],
+          HashCode.fromInt(0),
+          ImmutableMap.of(),
+          CloudFileStorage.StoreOptions.DEFAULT);
+    }
+
+    CachingCloudFileStorage storage = openWithLimit(1000);
+    storage
+        .store(
+            "dir",
+            new byte[300],
+            HashCode.fromInt(0),
+            ImmutableMap.of(),
+            CloudFileStorage.StoreOptions.builder().setCacheContentsOnUpload(true).build())
+        .get();
+    for (int i = 0; i < 10; i++) {
+      storage.get("file-" + i).get();
+    }
+    storage.close();
+    assertThat(storage.getCachedSize()).isAtMost(1000);
+    assertThat(storage.getEvictedFileCount()).isEqualTo(4);
+
+    storage = openWithLimit(1000);
+    assertThat(storage.get("dir").get()).hasLength(300);
+    assertThat(storage.get("file-9").get()).hasLength(100);
+    assertThat(storage.getCacheHitCount()).isEqualTo(2);
+    // still known to exist, but fetched again
+    assertThat(storage.exists("file-0").get()).isTrue();
+    assertThat(storage.getCacheHitCount()).isEqualTo(3);
+    assertThat(storage.get("file-0").get()).hasLength(100);
+    assertThat(storage.getCacheHitCount()).isEqualTo(3);
+    storage.close();
+  }
+
+  @Test
+  public void rebuildsUsageAfterCrash() throws Exception {
+    CachingCloudFileStorage storage = open();
+    storage.get("a").get();
+    storage.close();
+
+    // Contents cached without a limit count towards it once one is set.
+    storage = openWithLimit(1000);
+    assertThat(storage.getCachedSize()).isEqualTo(8);
+    storage.close();
+
+    try (KVStore kvStore = KVStores.open(cacheDir)) {
+      assertThat(kvStore.contains(Key.fromUtf8("usage"))).isTrue();
+      kvStore.delete(Key.fromUtf8("usage"));
+    }
+    storage = openWithLimit(4);
+    assertThat(storage.getCachedSize()).isEqualTo(0);
+    assertThat(storage.getEvictedFileCount()).isEqualTo(1);
+    assertThat(storage.exists("a").get()).isTrue();
+    storage.close();
+  }
+
+  private CachingCloudFileStorage openWithLimit(long maxSize) {
+    return new CachingCloudFileStorage(inMemoryStorage, cacheDir, Clock.systemUTC(), 1, 1, maxSize);
+  }
+
+  private CachingCloudFileStorage open() {
+    return new CachingCloudFileStorage(inMemoryStorage, cacheDir, Clock.systemUTC());
+  }
+}
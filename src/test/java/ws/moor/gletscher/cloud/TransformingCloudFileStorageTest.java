@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.cloud;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import ws.moor.gletscher.cloud.testing.InMemoryCloudFileStorage;
+import ws.moor.gletscher.util.LegacyHashing;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class TransformingCloudFileStorageTest {
+
+  @Test
+  public void alwaysVerifies() {
+    RoundTripVerifier verifier = RoundTripVerifier.always();
+    ReversingCloudFileStorage storage = new ReversingCloudFileStorage(verifier);
+    for (int i = 0; i < 4; i++) {
+      store(storage, "file-" + i, "contents " + i);
+    }
+    assertThat(storage.decodeCount).isEqualTo(4);
+    assertThat(verifier.getVerifiedCount()).isEqualTo(4);
+    assertThat(verifier.getSkippedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void verifiesEveryNthFile() throws Exception {
+    RoundTripVerifier verifier = RoundTripVerifier.sampled(3);
+    ReversingCloudFileStorage storage = new ReversingCloudFileStorage(verifier);
+    for (int i = 0; i < 7; i++) {
+      store(storage, "file-" + i, "contents " + i);
+    }
+    assertThat(storage.decodeCount).isEqualTo(3);
+    assertThat(verifier.getVerifiedCount()).isEqualTo(3);
+    assertThat(verifier.getSkippedCount()).isEqualTo(4);
+    assertThat(new String(storage.get("file-5").get(), StandardCharsets.UTF_8))
+        .isEqualTo("contents 5");
+    assertThat(storage.decodeCount).isEqualTo(4);
+  }
+
+  @Test
+  public void neverVerifies() {
+    RoundTripVerifier verifier = RoundTripVerifier.never();
+    ReversingCloudFileStorage storage = new ReversingCloudFileStorage(verifier);
+    storage.broken = true;
+    for (int i = 0; i < 5; i++) {
+      store(storage, "file-" + i, "contents " + i);
+    }
+    assertThat(storage.decodeCount).isEqualTo(0);
+    assertThat(verifier.getVerifiedCount()).isEqualTo(0);
+    assertThat(verifier.getSkippedCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void detectsBrokenRoundTrip() {
+    ReversingCloudFileStorage storage = new ReversingCloudFileStorage(RoundTripVerifier.always());
+    storage.broken = true;
+    try {
+      store(storage, "file", "contents");
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void detectsMismatchingMd5WithoutVerification() {
+    ReversingCloudFileStorage storage = new ReversingCloudFileStorage(RoundTripVerifier.never());
+    byte[] data = "contents".getBytes(StandardCharsets.UTF_8);
+    HashCode md5 = LegacyHashing.md5().hashBytes("changed".getBytes(StandardCharsets.UTF_8));
+    try {
+      storage.store("file", data, md5, ImmutableMap.of(), CloudFileStorage.StoreOptions.DEFAULT);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    assertThat(storage.decodeCount).isEqualTo(0);
+  }
+
+  private static void store(CloudFileStorage storage, String name, String contents) {
+    byte[] data = contents.getBytes(StandardCharsets.UTF_8);
+    HashCode md5 = LegacyHashing.md5().hashBytes(data);
+    storage.store(name, data, md5, ImmutableMap.of(), CloudFileStorage.StoreOptions.DEFAULT);
+  }
+
+  /** Stores data in reverse, optionally with a decoding bug. */
+  private static class ReversingCloudFileStorage extends TransformingCloudFileStorage {
+    int decodeCount = 0;
+    boolean broken = false;
+
+    ReversingCloudFileStorage(RoundTripVerifier verifier) {
+      super(new InMemoryCloudFileStorage(MoreExecutors.newDirectExecutorService()), verifier);
+    }
+
+    @Override
+    protected byte[] encode(byte[] data) {
+      return reverse(data);
+    }
+
+    @Override
+    protected byte[] decode(byte[] data) {
+      decodeCount++;
+      byte[] decoded = reverse(data);
+      if (broken) {
+        decoded[0]++;
+      }
+      return decoded;
+    }
+
+    private static byte[] reverse(byte[] data) {
+      byte[] result = new byte[data.length];
+      for (int i = 0; i < data.length; i++) {
+        result[i] = data[data.length - 1 - i];
+      }
+      return result;
+    }
+  }
+}
@@ -17,31 +17,47 @@
 package ws.moor.gletscher.cloud.testing;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Multiset;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import ws.moor.gletscher.cloud.CloudFileStorage;
 import ws.moor.gletscher.proto.testing.Testing;
 import ws.moor.gletscher.util.LegacyHashing;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class InMemoryCloudFileStorage implements CloudFileStorage {
 
   private final ListeningExecutorService executor;
   private final Object lock = new Object();
   private final SortedMap<String, Entry> files = new TreeMap<>();
+  private final Multiset<String> gets = HashMultiset.create();
+  private final Duration getDelay;
+  private final AtomicInteger getsInFlight = new AtomicInteger();
+  private final AtomicInteger maxGetsInFlight = new AtomicInteger();
 
   public InMemoryCloudFileStorage(ListeningExecutorService executor) {
+    this(executor, Duration.ZERO);
+  }
+
+  /** Creates a storage taking {@code getDelay} on {@code executor} for each retrieval. */
+  public InMemoryCloudFileStorage(ListeningExecutorService executor, Duration getDelay) {
     this.executor = executor;
+    this.getDelay = getDelay;
   }
 
   @Override
@@ -61,20 +77,33 @@ public class InMemoryCloudFileStorage implements CloudFileStorage {
 
   @Override
   public ListenableFuture<Boolean> exists(String name) {
-    return executor.submit(() -> files.containsKey(name));
-  }
-
-  @Override
-  public ListenableFuture<byte[]> get(String name) {
     return executor.submit(
         () -> {
           synchronized (lock) {
-            Entry entry = files.get(name);
-            return entry == null ? null : entry.data.toByteArray();
+            return files.containsKey(name);
           }
         });
   }
 
+  @Override
+  public ListenableFuture<byte[]> get(String name) {
+    maxGetsInFlight.accumulateAndGet(getsInFlight.incrementAndGet(), Math::max);
+    ListenableFuture<byte[]> future =
+        executor.submit(
+            () -> {
+              if (!getDelay.isZero()) {
+                Thread.sleep(getDelay.toMillis());
+              }
+              synchronized (lock) {
+                gets.add(name);
+                Entry entry = files.get(name);
+                return entry == null ? null : entry.data.toByteArray();
+              }
+            });
+    future.addListener(getsInFlight::decrementAndGet, MoreExecutors.directExecutor());
+    return future;
+  }
+
   @Override
   public void close() {
     // no-op
@@ -116,6 +145,18 @@ public class InMemoryCloudFileStorage implements CloudFileStorage {
     }
   }
 
+  /** Returns how many times each file has been retrieved. */
+  public ImmutableMultiset<String> getRetrievals() {
+    synchronized (lock) {
+      return ImmutableMultiset.copyOf(gets);
+    }
+  }
+
+  /** Returns the largest number of retrievals that were requested, but not done yet, at once. */
+  public int getMaxGetsInFlight() {
+    return maxGetsInFlight.get();
+  }
+
   public void mergeFromProto(Testing.FileList fileList) {
     synchronized (lock) {
       for (Testing.File file : fileList.getFileList()) {
@@ -27,6 +27,12 @@ import ws.moor.gletscher.cloud.testing.InMemoryCloudFileStorage;
 import ws.moor.gletscher.commands.testing.FileReadFailureInjector;
 import ws.moor.gletscher.commands.testing.TestCommandContext;
 import ws.moor.gletscher.testing.FileSystemTestRule;
+import ws.moor.gletscher.util.MoreArrays;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -61,7 +67,9 @@ public class BackupCommandTest {
     assertThat(context.status).isEqualTo(0);
     assertThat(context.stdOutString()).contains("new file: /home/file.txt");
     assertThat(context.stdOutString()).contains("new file: /home/file2.txt");
-    assertThat(context.stdErrString()).isEmpty();
+    assertThat(context.stdErrString()).contains("compression round trips: always: ");
+    assertThat(context.stdErrString()).contains("encryption round trips: always: ");
+    assertThat(errors(context)).isEmpty();
   }
 
   @Test
@@ -90,6 +98,34 @@ public class BackupCommandTest {
         + "java.lang.RuntimeException: java.io.IOException: Injected Failure");
   }
 
+  @Test
+  public void testLargeFileFallsBackToStreamIfMappingUnsupported() throws Exception {
+    unix.writeFile("/config.properties","""
+            version: 1
+            max_split_size: 65536
+            split_algorithm: fixed
+            disable_cache: true
+            include:
+              - /home
+            """);
+    unix.createDirectories("/home");
+    byte[] block = MoreArrays.randomBytes(new Random(0), 65536);
+    byte[] contents = new byte[16 << 20];
+    for (int i = 0; i < contents.length; i += block.length) {
+      System.arraycopy(block, 0, contents, i, block.length);
+    }
+    Files.write(unix.getFileSystem().getPath("/home/large.bin"), contents);
+
+    TestCommandContext context = new TestCommandContext(unix.getFileSystem(), inMemoryStorage);
+    GletscherMain main = new GletscherMain(context);
+    main.run("backup", "-c", "/config.properties");
+    assertThat(context.status).isEqualTo(0);
+    assertThat(context.stdOutString()).contains("new file: /home/large.bin");
+    assertThat(errors(context)).isEmpty();
+    // Catalog reference, catalog, two directories and the single distinct block.
+    assertThat(inMemoryStorage.getFileCount()).isEqualTo(5);
+  }
+
   @Test
   public void testBackupWindowsFollowedByUnix() throws Exception {
     windows.writeFile("C:\\config.properties","""
@@ -130,4 +166,53 @@ public class BackupCommandTest {
     // Only 3 new files needed: new catalog reference, new catalog, new root directory. Everything else is re-used.
     assertThat(inMemoryStorage.getFileCount()).isEqualTo(10);
   }
+
+  @Test
+  public void testParallelBackupMatchesSequentialBackup() throws Exception {
+    unix.writeFile("/parallel.properties","""
+            version: 1
+            max_split_size: 1024
+            split_algorithm: fixed
+            disable_cache: true
+            backup_threads: 8
+            include:
+              - /home
+            """);
+    unix.writeFile("/sequential.properties","""
+            version: 1
+            max_split_size: 1024
+            split_algorithm: fixed
+            disable_cache: true
+            backup_threads: 1
+            include:
+              - /home
+            """);
+    for (int dir = 0; dir < 4; dir++) {
+      unix.createDirectories("/home/dir" + dir);
+      for (int file = 0; file < 25; file++) {
+        unix.writeFile("/home/dir" + dir + "/file" + file + ".txt", "Hello World ".repeat(dir * 100 + file));
+      }
+    }
+
+    TestCommandContext context = new TestCommandContext(unix.getFileSystem(), inMemoryStorage);
+    new GletscherMain(context).run("backup", "-c", "/parallel.properties");
+    assertThat(context.status).isEqualTo(0);
+    assertThat(errors(context)).isEmpty();
+    int fileCount = inMemoryStorage.getFileCount();
+
+    // None of the directories differ from the parallel run, only a new catalog and its reference get stored.
+    context = new TestCommandContext(unix.getFileSystem(), inMemoryStorage);
+    new GletscherMain(context).run("backup", "-c", "/sequential.properties");
+    assertThat(context.status).isEqualTo(0);
+    assertThat(inMemoryStorage.getFileCount()).isEqualTo(fileCount + 2);
+  }
+
+  /** Returns the lines written to stderr, except for the statistics printed at the end. */
+  private static List<String> errors(TestCommandContext context) {
+    return context
+        .stdErrString()
+        .lines()
+        .filter(line -> !line.contains(" round trips: "))
+        .collect(Collectors.toList());
+  }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.commands;
+
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import ws.moor.gletscher.GletscherMain;
+import ws.moor.gletscher.cloud.CloudFileStorage;
+import ws.moor.gletscher.cloud.testing.InMemoryCloudFileStorage;
+import ws.moor.gletscher.commands.testing.TestCommandContext;
+import ws.moor.gletscher.testing.FileSystemTestRule;
+import ws.moor.gletscher.util.MoreArrays;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.assertThrows;
+
+@RunWith(JUnit4.class)
+public class RestoreCommandTest {
+
+  @Rule public FileSystemTestRule unix = FileSystemTestRule.unix();
+  private InMemoryCloudFileStorage inMemoryStorage;
+
+  @Before
+  public void setUp() {
+    inMemoryStorage = new InMemoryCloudFileStorage(MoreExecutors.newDirectExecutorService());
+  }
+
+  @Test
+  public void testRetrievesSharedBlocksOnce() throws Exception {
+    unix.writeFile("/config.properties","""
+            version: 1
+            max_split_size: 65536
+            split_algorithm: fixed
+            disable_cache: true
+            include:
+              - /home
+            """);
+    unix.createDirectories("/home/sub");
+    Random rnd = new Random(0);
+    byte[] first = MoreArrays.randomBytes(rnd, 65536);
+    byte[] second = MoreArrays.randomBytes(rnd, 65536);
+    byte[] contents = Bytes.concat(first, second);
+    byte[] reordered = Bytes.concat(second, first);
+    Files.write(unix.getPath("/home/a.bin"), contents);
+    Files.write(unix.getPath("/home/b.bin"), contents);
+    Files.write(unix.getPath("/home/sub/c.bin"), reordered);
+
+    TestCommandContext context = new TestCommandContext(unix.getFileSystem(), inMemoryStorage);
+    new GletscherMain(context).run("backup", "-c", "/config.properties");
+    assertThat(context.status).isEqualTo(0);
+
+    Multiset<String> retrievedBefore = inMemoryStorage.getRetrievals();
+    context = new TestCommandContext(unix.getFileSystem(), inMemoryStorage);
+    new GletscherMain(context).run("restore", "-c", "/config.properties", "/restore");
+    assertThat(context.status).isEqualTo(0);
+    assertThat(context.stdErrString()).isEmpty();
+    assertThat(context.stdOutString())
+        .contains("restored 3 files, 2 blocks retrieved, 0 blocks copied locally");
+
+    Multiset<String> retrieved =
+        Multisets.difference(inMemoryStorage.getRetrievals(), retrievedBefore);
+    for (Multiset.Entry<String> entry : retrieved.entrySet()) {
+      assertWithMessage(entry.getElement()).that(entry.getCount()).isEqualTo(1);
+    }
+
+    assertThat(Files.readAllBytes(unix.getPath("/restore/home/a.bin"))).isEqualTo(contents);
+    assertThat(Files.readAllBytes(unix.getPath("/restore/home/b.bin"))).isEqualTo(contents);
+    assertThat(Files.readAllBytes(unix.getPath("/restore/home/sub/c.bin"))).isEqualTo(reordered);
+  }
+
+  @Test
+  public void testRestoresDeepTreeWithBoundedRequests() throws Exception {
+    unix.writeFile("/config.properties","""
+            version: 1
+            max_split_size: 1024
+            split_algorithm: fixed
+            disable_cache: true
+            restore_threads: 2
+            include:
+              - /home
+            """);
+    Random rnd = new Random(0);
+    Map<String, byte[]> files = new LinkedHashMap<>();
+    String directory = "/home";
+    for (int depth = 0; depth < 8; depth++) {
+      unix.createDirectories(directory);
+      for (int i = 0; i < 40; i++) {
+        String path = directory + "/file-" + i + ".bin";
+        byte[] contents = MoreArrays.randomBytes(rnd, rnd.nextInt(4096));
+        Files.write(unix.getPath(path), contents);
+        files.put(path, contents);
+      }
+      directory += "/level-" + depth;
+    }
+
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(16));
+    try {
+      InMemoryCloudFileStorage slowStorage =
+          new InMemoryCloudFileStorage(executor, Duration.ofMillis(2));
+      TestCommandContext context = new TestCommandContext(unix.getFileSystem(), slowStorage);
+      new GletscherMain(context).run("backup", "-c", "/config.properties");
+      assertThat(context.status).isEqualTo(0);
+
+      context = new TestCommandContext(unix.getFileSystem(), slowStorage);
+      new GletscherMain(context).run("restore", "-c", "/config.properties", "/restore");
+      assertThat(context.status).isEqualTo(0);
+      assertThat(context.stdOutString()).contains("restored 320 files");
+      // at most 64 requests, or four per restore thread, are in flight at once
+      assertThat(slowStorage.getMaxGetsInFlight()).isGreaterThan(16);
+      assertThat(slowStorage.getMaxGetsInFlight()).isAtMost(64);
+    } finally {
+      executor.shutdown();
+    }
+
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      assertWithMessage(file.getKey())
+          .that(Files.readAllBytes(unix.getPath("/restore" + file.getKey())))
+          .isEqualTo(file.getValue());
+    }
+  }
+
+  @Test
+  public void testReportsMissingBlock() throws Exception {
+    unix.writeFile("/config.properties","""
+            version: 1
+            max_split_size: 65536
+            split_algorithm: fixed
+            disable_cache: true
+            include:
+              - /home
+            """);
+    unix.createDirectories("/home");
+    byte[] contents = MoreArrays.randomBytes(new Random(0), 4 * 65536);
+    Files.write(unix.getPath("/home/a.bin"), contents);
+    Files.write(unix.getPath("/home/b.bin"), contents);
+
+    TestCommandContext context = new TestCommandContext(unix.getFileSystem(), inMemoryStorage);
+    new GletscherMain(context).run("backup", "-c", "/config.properties");
+    assertThat(context.status).isEqualTo(0);
+
+    Iterator<CloudFileStorage.FileHeader> blocks =
+        inMemoryStorage.listFiles("blocks/", Integer.MAX_VALUE);
+    while (blocks.hasNext()) {
+      String name = blocks.next().name;
+      if (name.endsWith(":65536")) {
+        inMemoryStorage.delete(name);
+        break;
+      }
+    }
+
+    TestCommandContext restoreContext =
+        new TestCommandContext(unix.getFileSystem(), inMemoryStorage);
+    assertThrows(
+        Exception.class,
+        () ->
+            new GletscherMain(restoreContext)
+                .run("restore", "-c", "/config.properties", "/restore"));
+    assertThat(Files.exists(unix.getPath("/restore/home/a.bin"))).isFalse();
+    assertThat(Files.exists(unix.getPath("/restore/home/b.bin"))).isFalse();
+  }
+}
@@ -28,10 +28,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Clock;
 
 public class TestCommandContext implements CommandContext {
@@ -98,6 +100,11 @@ public class TestCommandContext implements CommandContext {
     return failureInjector.wrap(path, Files.newInputStream(path));
   }
 
+  @Override
+  public FileChannel openFile(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.READ);
+  }
+
   public String stdOutString() {
     return new String(stdOut.toByteArray(), StandardCharsets.UTF_8);
   }
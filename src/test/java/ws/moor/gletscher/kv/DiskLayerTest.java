@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import com.google.common.jimfs.Jimfs;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import static com.google.common.jimfs.Configuration.unix;
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(JUnit4.class)
+public class DiskLayerTest {
+
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Jimfs.newFileSystem(unix()).getPath("/tmp/kv-store");
+    Files.createDirectories(root);
+  }
+
+  @Test
+  public void readsVersionOneWithoutBloomFilter() throws Exception {
+    DiskLayer layer = writeLayer(1, false);
+    assertThat(layer.hasBloomFilter()).isFalse();
+    checkContents(layer);
+    layer.close();
+  }
+
+  @Test
+  public void bloomFilterAnswersMisses() throws Exception {
+    DiskLayer layer = writeLayer(DiskLayerWriter.CURRENT_VERSION, false);
+    assertThat(layer.hasBloomFilter()).isTrue();
+    checkContents(layer);
+    layer.close();
+  }
+
+  @Test
+  public void compactNodesTakeLessSpace() throws Exception {
+    DiskLayer layer = writeLayer(3, false);
+    checkContents(layer);
+    long fullSize = layer.size();
+    layer.close();
+    Files.delete(root.resolve("data-000001"));
+
+    layer = writeLayer(DiskLayerWriter.CURRENT_VERSION, false);
+    checkContents(layer);
+    checkIteration(layer);
+    long compactSize = layer.size();
+    layer.close();
+    Files.delete(root.resolve("data-000001"));
+
+    layer = writeLayer(DiskLayerWriter.CURRENT_VERSION, true);
+    checkContents(layer);
+    checkIteration(layer);
+    long compressedSize = layer.size();
+    layer.close();
+
+    assertThat(compactSize).isLessThan(fullSize);
+    assertThat(compressedSize).isLessThan(compactSize);
+  }
+
+  private DiskLayer writeLayer(long version, boolean compressNodes) throws Exception {
+    Path path = root.resolve("data-000001");
+    try (FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      DiskLayerWriter writer = new DiskLayerWriter(channel, version, compressNodes);
+      for (int i = 0; i < 10_000; i += 2) {
+        Key key = key(i);
+        writer.write(key, i % 10 == 0 ? null : ByteBuffer.wrap(key.toByteArray()));
+      }
+      writer.finish();
+    }
+    DiskLayer layer = new DiskLayer(path, 0, null);
+    layer.open();
+    return layer;
+  }
+
+  private static void checkContents(DiskLayer layer) {
+    for (int i = 0; i < 10_000; i++) {
+      Key key = key(i);
+      BlockLocation location = layer.find(key);
+      if (i % 2 == 1) {
+        assertThat(location).isNull();
+      } else if (i % 10 == 0) {
+        assertThat(location.isDeleteMarker()).isTrue();
+      } else {
+        assertThat(KVStoreImpl.toByteArray(location.read())).isEqualTo(key.toByteArray());
+      }
+    }
+  }
+
+  private static void checkIteration(DiskLayer layer) {
+    Iterator<KeyEntry> it = layer.keyIterator(key(4), false, true);
+    for (int i = 6; i < 10_000; i += 2) {
+      assertThat(it.next().getKey()).isEqualTo(key(i));
+    }
+    assertThat(it.hasNext()).isFalse();
+  }
+
+  private static Key key(int i) {
+    return Key.fromUtf8(String.format("key-%08d", i));
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(JUnit4.class)
+public class FlatBTreeNodeTest {
+
+  @Test
+  public void leafFindsKeysInPlace() {
+    List<Key> keys = randomKeys(500);
+    BTreeNode node = BTreeNode.newEmptyLeafNode();
+    for (int i = 0; i < keys.size(); i++) {
+      BlockLocation location =
+          i % 3 == 0
+              ? new BlockLocation(BlockLocation.Type.BLOB, null, i, 1000L * i, i)
+              : new BlockLocation(BlockLocation.Type.VALUE, null, 1000L * i, i);
+      node.addLeafEntry(keys.get(i), location);
+    }
+    FlatBTreeNode flat = FlatBTreeNode.parseFrom(null, node.serialize());
+
+    assertThat(flat.isLeaf).isTrue();
+    assertThat(flat.size()).isEqualTo(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      assertThat(flat.key(i)).isEqualTo(keys.get(i));
+      assertThat(flat.findKey(keys.get(i))).isEqualTo(node.locations.get(i));
+      Key missing = keys.get(i).next();
+      if (!keys.contains(missing)) {
+        assertThat(flat.findKeyIndex(missing)).isEqualTo(Collections.binarySearch(keys, missing));
+      }
+    }
+    assertThat(flat.findKeyIndex(Key.MIN)).isEqualTo(-1);
+    assertThat(flat.findKeyIndex(Key.MAX)).isEqualTo(-keys.size() - 1);
+  }
+
+  @Test
+  public void innerNodeFindsCoveringChild() {
+    List<Key> keys = randomKeys(100);
+    BTreeNode node = BTreeNode.newEmptyInnerNode();
+    node.addInnerChild(new BlockLocation(BlockLocation.Type.NODE, null, 0, 1));
+    for (int i = 0; i < keys.size(); i++) {
+      node.addInnerKey(keys.get(i));
+      node.addInnerChild(new BlockLocation(BlockLocation.Type.NODE, null, i + 1, 1));
+    }
+    FlatBTreeNode flat = FlatBTreeNode.parseFrom(null, node.serialize());
+
+    assertThat(flat.isLeaf).isFalse();
+    assertThat(flat.key(0)).isEqualTo(Key.MIN);
+    assertThat(flat.findKey(Key.MIN).offset).isEqualTo(0);
+    assertThat(flat.findKey(Key.MAX).offset).isEqualTo(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      assertThat(flat.findKey(keys.get(i)).offset).isEqualTo(i + 1);
+      assertThat(flat.findKey(keys.get(i).next()).offset).isAtLeast(i + 1);
+    }
+  }
+
+  private static List<Key> randomKeys(int count) {
+    Random random = new Random(7);
+    TreeSet<Key> keys = new TreeSet<>();
+    while (keys.size() < count) {
+      byte[] bytes = new byte[1 + random.nextInt(20)];
+      random.nextBytes(bytes);
+      keys.add(Key.copyOf(bytes));
+    }
+    return new ArrayList<>(keys);
+  }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import com.google.common.jimfs.Jimfs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static com.google.common.jimfs.Configuration.unix;
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(JUnit4.class)
+public class KVStoreTest {
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path root;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Jimfs.newFileSystem(unix()).getPath("/tmp/kv-store");
+    Files.createDirectories(root);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+  }
+
+  @Test
+  public void readersRunConcurrentlyWithWritesAndFlushes() throws Exception {
+    KVStore store = KVStores.open(root);
+    AtomicInteger written = new AtomicInteger();
+    AtomicBoolean done = new AtomicBoolean();
+
+    List<Future<?>> readers = new ArrayList<>();
+    for (int r = 0; r < 3; r++) {
+      readers.add(
+          executor.submit(
+              () -> {
+                while (!done.get()) {
+                  int upTo = written.get();
+                  for (int i = Math.max(0, upTo - 100); i < upTo; i++) {
+                    assertThat(store.get(key(i))).isEqualTo(value(i));
+                  }
+                  assertThat(store.contains(Key.fromUtf8("missing-" + upTo))).isFalse();
+                }
+                return null;
+              }));
+    }
+
+    for (int i = 0; i < 20_000; i++) {
+      store.store(key(i), value(i));
+      written.set(i + 1);
+      if (i % 2_000 == 1_999) {
+        store.flush();
+      }
+    }
+    done.set(true);
+    for (Future<?> reader : readers) {
+      reader.get();
+    }
+
+    for (int i = 0; i < 20_000; i++) {
+      assertThat(store.get(key(i))).isEqualTo(value(i));
+    }
+    store.close();
+  }
+
+  @Test
+  public void parallelLookupsShareDiskLayer() throws Exception {
+    KVStore store = KVStores.open(root);
+    for (int i = 0; i < 50_000; i++) {
+      store.store(key(i), value(i));
+    }
+    store.close();
+
+    KVStore reopened = KVStores.open(root);
+    List<Future<?>> readers = new ArrayList<>();
+    for (int r = 0; r < 4; r++) {
+      int seed = r;
+      readers.add(
+          executor.submit(
+              () -> {
+                Random rnd = new Random(seed);
+                for (int n = 0; n < 50_000; n++) {
+                  int i = rnd.nextInt(50_000);
+                  assertThat(reopened.get(key(i))).isEqualTo(value(i));
+                }
+                return null;
+              }));
+    }
+    for (Future<?> reader : readers) {
+      reader.get();
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void memoryMappedLayersServeReadOnlyBuffers() throws Exception {
+    Path dir = temporaryFolder.newFolder().toPath();
+    KVStore store = KVStores.open(dir);
+    byte[] large = new byte[1 << 20];
+    new Random(42).nextBytes(large);
+    store.store(Key.fromUtf8("large"), large);
+    for (int i = 0; i < 1_000; i++) {
+      store.store(key(i), value(i));
+    }
+    store.close();
+
+    store = KVStores.open(dir);
+    ByteBuffer buffer = store.getBuffer(Key.fromUtf8("large"));
+    assertThat(buffer.isReadOnly()).isTrue();
+    assertThat(buffer.isDirect()).isTrue();
+    assertThat(buffer.remaining()).isEqualTo(large.length);
+    assertThat(store.get(Key.fromUtf8("large"))).isEqualTo(large);
+    for (int i = 0; i < 1_000; i++) {
+      assertThat(store.get(key(i))).isEqualTo(value(i));
+    }
+    assertThat(store.getBuffer(Key.fromUtf8("missing"))).isNull();
+    store.close();
+
+    store = KVStores.open(dir, KVStoreOptions.builder().setMemoryMapped(false).build());
+    assertThat(store.getBuffer(Key.fromUtf8("large")).isDirect()).isFalse();
+    assertThat(store.get(Key.fromUtf8("large"))).isEqualTo(large);
+    store.close();
+  }
+
+  @Test
+  public void compactsInBackgroundWhileWriting() throws Exception {
+    checkCompaction(KVStoreOptions.builder().setMemoryLayerSize(16 << 10).build());
+  }
+
+  @Test
+  public void compactsInlineWithoutBackgroundThread() throws Exception {
+    checkCompaction(
+        KVStoreOptions.builder()
+            .setMemoryLayerSize(16 << 10)
+            .setBackgroundCompaction(false)
+            .build());
+  }
+
+  @Test
+  public void compactsWithOffHeapMemoryLayers() throws Exception {
+    checkCompaction(
+        KVStoreOptions.builder()
+            .setMemoryLayerSize(16 << 10)
+            .setOffHeapMemoryLayers(true)
+            .build());
+  }
+
+  private void checkCompaction(KVStoreOptions options) throws Exception {
+    KVStoreImpl store = (KVStoreImpl) KVStores.open(root, options);
+    for (int i = 0; i < 20_000; i++) {
+      store.store(key(i), value(i));
+      if (i % 3 == 0) {
+        store.delete(key(i / 3));
+      }
+      assertThat(store.getDiskLayerCount()).isLessThan(options.writeStallLayers + 1);
+    }
+    store.flush();
+    assertThat(store.getCompactionCount()).isGreaterThan(0);
+    for (int i = 0; i < 20_000; i++) {
+      assertThat(store.get(key(i))).isEqualTo(i < 6_667 ? null : value(i));
+    }
+    store.close();
+
+    KVStore reopened = KVStores.open(root, options);
+    for (int i = 0; i < 20_000; i++) {
+      assertThat(reopened.get(key(i))).isEqualTo(i < 6_667 ? null : value(i));
+    }
+    reopened.close();
+    try (Stream<Path> files = Files.list(root)) {
+      assertThat(files.count()).isAtMost(options.writeStallLayers);
+    }
+  }
+
+  @Test
+  public void recoversUnflushedWritesFromLog() throws Exception {
+    KVStore store =
+        KVStores.open(
+            root, KVStoreOptions.builder().setWalSync(KVStoreOptions.WalSync.ALWAYS).build());
+    for (int i = 0; i < 1_000; i++) {
+      store.store(key(i), value(i));
+    }
+    store.flush();
+    for (int i = 1_000; i < 2_000; i++) {
+      store.store(key(i), value(i));
+    }
+    store.delete(key(7));
+    store.delete(key(1_007));
+
+    // A crash leaves the files as they are, with a partially written record at the end.
+    Path crashed = root.resolveSibling("crashed");
+    Files.createDirectories(crashed);
+    try (Stream<Path> files = Files.list(root)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (!file.getFileName().toString().equals("lock")) {
+          Files.copy(file, crashed.resolve(file.getFileName().toString()));
+        }
+      }
+    }
+    try (Stream<Path> files = Files.list(crashed)) {
+      Path wal =
+          files.filter(p -> p.getFileName().toString().startsWith("wal-")).findFirst().get();
+      Files.write(wal, new byte[] {0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+    }
+    store.close();
+
+    KVStore recovered = KVStores.open(crashed);
+    for (int i = 0; i < 2_000; i++) {
+      assertThat(recovered.get(key(i))).isEqualTo(i % 1_000 == 7 ? null : value(i));
+    }
+    recovered.close();
+    try (Stream<Path> files = Files.list(crashed)) {
+      assertThat(files.noneMatch(p -> p.getFileName().toString().startsWith("wal-"))).isTrue();
+    }
+  }
+
+  @Test
+  public void manifestIgnoresFilesLeftBehindByCrash() throws Exception {
+    KVStoreOptions options =
+        KVStoreOptions.builder().setMemoryLayerSize(16 << 10).setBackgroundCompaction(false).build();
+    KVStore store = KVStores.open(root, options);
+    for (int i = 0; i < 5_000; i++) {
+      store.store(key(i), value(i));
+    }
+    for (int i = 0; i < 5_000; i += 2) {
+      store.delete(key(i));
+    }
+    store.close();
+
+    // A compaction interrupted before its edit made it to the manifest leaves a complete layer
+    // holding the deleted values, and a torn record at the end of the manifest.
+    try (Stream<Path> files = Files.list(root)) {
+      Path data =
+          files.filter(p -> p.getFileName().toString().startsWith("data-")).findFirst().get();
+      Files.copy(data, root.resolve("data-999999"));
+    }
+    Files.write(
+        root.resolve("MANIFEST"), new byte[] {0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+    store = KVStores.open(root, options);
+    assertThat(Files.exists(root.resolve("data-999999"))).isFalse();
+    for (int i = 0; i < 5_000; i++) {
+      assertThat(store.get(key(i))).isEqualTo(i % 2 == 0 ? null : value(i));
+    }
+    store.close();
+  }
+
+  @Test
+  public void upgradeToManifestSurvivesCrash() throws Exception {
+    KVStoreOptions options =
+        KVStoreOptions.builder().setMemoryLayerSize(16 << 10).setBackgroundCompaction(false).build();
+    KVStore store = KVStores.open(root, options);
+    for (int i = 0; i < 5_000; i++) {
+      store.store(key(i), value(i));
+    }
+    store.close();
+
+    // Stores written before there was a manifest have just their layers, and maybe the remains
+    // of a flush in progress.
+    Files.delete(root.resolve("MANIFEST"));
+    Files.write(root.resolve("latest-layer"), new byte[] {0, 0, 0, 0, 0, 0, 0, 1});
+
+    // A crash right after the first manifest got written leaves the legacy files in place.
+    store = KVStores.open(root, options);
+    assertThat(Files.exists(root.resolve("latest-layer"))).isFalse();
+    Path crashed = root.resolveSibling("crashed");
+    Files.createDirectories(crashed);
+    try (Stream<Path> files = Files.list(root)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (!file.getFileName().toString().equals("lock")) {
+          Files.copy(file, crashed.resolve(file.getFileName().toString()));
+        }
+      }
+    }
+    Files.write(crashed.resolve("latest-layer"), new byte[] {0, 0, 0, 0, 0, 0, 0, 1});
+    store.close();
+
+    KVStore recovered = KVStores.open(crashed, options);
+    for (int i = 0; i < 5_000; i++) {
+      assertThat(recovered.get(key(i))).isEqualTo(value(i));
+    }
+    recovered.close();
+    assertThat(Files.exists(crashed.resolve("latest-layer"))).isFalse();
+  }
+
+  @Test
+  public void largeValuesLiveInValueLog() throws Exception {
+    KVStoreOptions options =
+        KVStoreOptions.builder()
+            .setMemoryLayerSize(1 << 20)
+            .setBlobThreshold(4 << 10)
+            .setBackgroundCompaction(false)
+            .build();
+    KVStoreImpl store = (KVStoreImpl) KVStores.open(root, options);
+    for (int i = 0; i < 1_000; i++) {
+      store.store(key(i), largeValue(i));
+      store.store(Key.fromUtf8("small-" + i), value(i));
+    }
+    store.flush();
+    assertThat(store.getCompactionCount()).isGreaterThan(0);
+    assertThat(totalSize("data-")).isLessThan(1 << 20);
+    assertThat(totalSize("blob-")).isAtLeast(1_000L * (16 << 10));
+
+    // dropping most values makes the value log files mostly garbage
+    for (int i = 0; i < 1_000; i++) {
+      if (i % 10 != 0) {
+        store.delete(key(i));
+      }
+    }
+    store.close();
+
+    store = (KVStoreImpl) KVStores.open(root, options);
+    for (int i = 0; i < 50; i++) {
+      store.store(key(i), largeValue(i));
+    }
+    store.close();
+    assertThat(totalSize("blob-")).isLessThan(300L * (16 << 10));
+
+    KVStore reopened = KVStores.open(root);
+    for (int i = 0; i < 1_000; i++) {
+      assertThat(reopened.get(key(i)))
+          .isEqualTo(i < 50 || i % 10 == 0 ? largeValue(i) : null);
+      assertThat(reopened.get(Key.fromUtf8("small-" + i))).isEqualTo(value(i));
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void multiGetAndScanSpanAllLayers() throws Exception {
+    KVStoreOptions options =
+        KVStoreOptions.builder().setMemoryLayerSize(64 << 10).setBackgroundCompaction(false).build();
+    KVStore store = KVStores.open(root, options);
+    for (int i = 0; i < 10_000; i += 2) {
+      store.store(key(i), value(i));
+    }
+    for (int i = 0; i < 10_000; i += 6) {
+      store.delete(key(i));
+    }
+    store.store(Key.fromUtf8("other"), value(0));
+
+    List<Key> keys = new ArrayList<>();
+    for (int i = 9_999; i >= 0; i--) {
+      keys.add(key(i));
+    }
+    Map<Key, byte[]> values = store.multiGet(keys);
+    assertThat(values).hasSize(10_000 / 3);
+    for (int i = 0; i < 10_000; i++) {
+      assertThat(values.get(key(i))).isEqualTo(i % 2 == 0 && i % 6 != 0 ? value(i) : null);
+    }
+    assertThat(values.keySet()).isInOrder();
+
+    Iterator<KVStore.Entry> it = store.scan(key(100), key(200));
+    for (int i = 100; i < 200; i++) {
+      if (i % 2 == 0 && i % 6 != 0) {
+        assertThat(it.next().getKey()).isEqualTo(key(i));
+      }
+    }
+    assertThat(it.hasNext()).isFalse();
+    assertThat(store.scan(Key.fromUtf8("p"), Key.MAX).hasNext()).isFalse();
+    assertThat(store.scan(Key.fromUtf8("o"), Key.fromUtf8("p")).next().getKey())
+        .isEqualTo(Key.fromUtf8("other"));
+
+    KVStore.Scan scan = store.scan(key(100), key(200));
+    assertThat(scan.next().getKey()).isEqualTo(key(100));
+    scan.close();
+    assertThat(scan.hasNext()).isFalse();
+    store.close();
+  }
+
+  private long totalSize(String prefix) throws Exception {
+    try (Stream<Path> files = Files.list(root)) {
+      long size = 0;
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (file.getFileName().toString().startsWith(prefix)) {
+          size += Files.size(file);
+        }
+      }
+      return size;
+    }
+  }
+
+  private static byte[] largeValue(int i) {
+    byte[] value = new byte[16 << 10];
+    new Random(i).nextBytes(value);
+    return value;
+  }
+
+  private static Key key(int i) {
+    return Key.fromUtf8(String.format("key-%08d", i));
+  }
+
+  private static byte[] value(int i) {
+    return new byte[] {(byte) i, (byte) (i >>> 8), (byte) (i >>> 16)};
+  }
+}
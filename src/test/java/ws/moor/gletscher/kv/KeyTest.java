@@ -53,6 +53,14 @@ public class KeyTest {
     assertEqual(Key.fromHex("1234").prefix(2), Key.fromHex("1234"));
   }
 
+  @Test
+  public void prefixEnd() {
+    assertEqual(Key.fromHex("1234").prefixEnd(), Key.fromHex("1235"));
+    assertEqual(Key.fromHex("12ffff").prefixEnd(), Key.fromHex("13"));
+    assertEqual(Key.fromHex("ffff").prefixEnd(), Key.MAX);
+    assertThat(Key.fromHex("1234ff").prefixEnd()).isGreaterThan(Key.fromHex("1234ffff00"));
+  }
+
   private static void assertEqual(Key a, Key b) {
     assertThat(a).isEqualTo(b);
     assertThat(a).isEquivalentAccordingToCompareTo(b);
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(JUnit4.class)
+public class OffHeapArenaTest {
+
+  @Test
+  public void copiesValuesOffHeap() {
+    OffHeapArena arena = new OffHeapArena();
+    byte[] value = {1, 2, 3};
+    ByteBuffer source = ByteBuffer.wrap(value);
+    ByteBuffer copy = arena.copyOf(source);
+    value[0] = 42;
+
+    assertThat(copy.isDirect()).isTrue();
+    assertThat(source.remaining()).isEqualTo(3);
+    assertThat(KVStoreImpl.toByteArray(copy)).isEqualTo(new byte[] {1, 2, 3});
+  }
+
+  @Test
+  public void copiesDontOverlap() {
+    OffHeapArena arena = new OffHeapArena();
+    ByteBuffer[] copies = new ByteBuffer[1000];
+    for (int i = 0; i < copies.length; i++) {
+      copies[i] = arena.copyOf(ByteBuffer.wrap(value(i)));
+    }
+    for (int i = 0; i < copies.length; i++) {
+      assertThat(KVStoreImpl.toByteArray(copies[i].duplicate())).isEqualTo(value(i));
+    }
+  }
+
+  @Test
+  public void copiesBlockSizedValues() {
+    OffHeapArena arena = new OffHeapArena();
+    byte[] value = new byte[8 << 20];
+    value[value.length - 1] = 42;
+    ByteBuffer copy = arena.copyOf(ByteBuffer.wrap(value));
+
+    assertThat(copy.isDirect()).isTrue();
+    assertThat(copy.capacity()).isEqualTo(value.length);
+    assertThat(KVStoreImpl.toByteArray(copy)).isEqualTo(value);
+  }
+
+  private static byte[] value(int i) {
+    byte[] value = new byte[i * 397 % 20_000];
+    for (int j = 0; j < value.length; j++) {
+      value[j] = (byte) (i + j);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.kv;
+
+import com.google.common.jimfs.Jimfs;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.jimfs.Configuration.unix;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+@RunWith(JUnit4.class)
+public class WriteAheadLogTest {
+
+  @Test
+  public void abandonedRecordFailsLaterWritersInsteadOfBlockingThem() throws Exception {
+    Path path = Jimfs.newFileSystem(unix()).getPath("/wal-000001");
+    WriteAheadLog wal = WriteAheadLog.create(path, KVStoreOptions.WalSync.ALWAYS);
+    wal.sync(wal.write(wal.reserve(key(0), value(0))));
+    WriteAheadLog.Record lost = wal.reserve(key(1), value(1));
+    WriteAheadLog.Record later = wal.reserve(key(2), value(2));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Long> laterWrite = executor.submit(() -> wal.write(later));
+      // the writer of the record reserved first fails before writing it
+      wal.abandon(lost, null);
+      ExecutionException e =
+          assertThrows(ExecutionException.class, () -> laterWrite.get(1, TimeUnit.MINUTES));
+      assertThat(e).hasCauseThat().isInstanceOf(KVStoreException.class);
+      assertThrows(KVStoreException.class, () -> wal.write(wal.reserve(key(3), value(3))));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // what made it to the log before the gap can still be replayed
+    MemoryLayer replayed = new MemoryLayer(1, null);
+    assertThat(WriteAheadLog.replay(path, replayed)).isEqualTo(1);
+    assertThat(KVStoreImpl.toByteArray(replayed.find(key(0)).read())).isEqualTo(new byte[] {0});
+
+    wal.delete();
+    assertThat(Files.exists(path)).isFalse();
+  }
+
+  private static Key key(int i) {
+    return Key.fromUtf8("key-" + i);
+  }
+
+  private static ByteBuffer value(int i) {
+    return ByteBuffer.wrap(new byte[] {(byte) i});
+  }
+}
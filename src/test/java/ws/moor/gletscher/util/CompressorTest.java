@@ -20,7 +20,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Random;
+import java.util.zip.GZIPOutputStream;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -38,4 +41,35 @@ public class CompressorTest {
       assertThat(compressor.decompress(compressor.compress(plaintext))).isEqualTo(plaintext);
     }
   }
+
+  @Test
+  public void roundtripCompressible() {
+    Random rnd = new Random(0);
+    Compressor compressor = new Compressor();
+
+    for (int length : new int[] {0, 1, 1000, 128 << 10, (128 << 10) + 1, 3 << 20}) {
+      byte[] plaintext = new byte[length];
+      for (int i = 0; i < length; i++) {
+        plaintext[i] = (byte) (rnd.nextInt(4) + 'a');
+      }
+
+      byte[] compressed = compressor.compress(plaintext);
+      if (length > 1000) {
+        assertThat(compressed.length).isLessThan(length);
+      }
+      assertThat(compressor.decompress(compressed)).isEqualTo(plaintext);
+    }
+  }
+
+  @Test
+  public void decompressesPlainGzip() throws IOException {
+    byte[] plaintext = new byte[100_000];
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(1);
+    try (GZIPOutputStream os = new GZIPOutputStream(baos)) {
+      os.write(plaintext);
+    }
+
+    assertThat(new Compressor().decompress(baos.toByteArray())).isEqualTo(plaintext);
+  }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The original byte-at-a-time rolling hash splitter, kept as a reference for cut points. */
+final class PerByteRollingHashSplitter {
+
+  private PerByteRollingHashSplitter() {}
+
+  static List<byte[]> split(byte[] data, int maxBlockSize) {
+    List<byte[]> blocks = new ArrayList<>();
+    RollingHash rollingHash = new RollingHash();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(32 << 10);
+    try (InputStream is = new BufferedInputStream(new ByteArrayInputStream(data), 1 << 20)) {
+      int value = is.read();
+      while (value >= 0) {
+        buffer.write(value);
+        if (rollingHash.update(value) || buffer.size() == maxBlockSize) {
+          rollingHash.reset();
+          blocks.add(buffer.toByteArray());
+          buffer.reset();
+        }
+        value = is.read();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (buffer.size() > 0) {
+      blocks.add(buffer.toByteArray());
+    }
+    return blocks;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Patrick Moor <patrick@moor.ws>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.moor.gletscher.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares splitter throughput on 64 MiB of random data. Run {@link #main} from the test
+ * classpath, scores are in milliseconds per 64 MiB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+public class StreamSplitterBenchmark {
+
+  private static final int MAX_BLOCK_SIZE = 32 << 20;
+
+  @Param({"rolling", "fastcdc"})
+  public String algorithm;
+
+  private byte[] data;
+  private StreamSplitter splitter;
+
+  @Setup
+  public void setUp() {
+    data = MoreArrays.randomBytes(new Random(0), 64 << 20);
+    splitter =
+        switch (algorithm) {
+          case "rolling" -> StreamSplitter.rollingHashSplitter(MAX_BLOCK_SIZE);
+          case "fastcdc" -> StreamSplitter.fastCdcSplitter(256 << 10, 1 << 20, MAX_BLOCK_SIZE);
+          default -> throw new IllegalArgumentException(algorithm);
+        };
+  }
+
+  @Benchmark
+  public void perByteRollingHash(Blackhole blackhole) {
+    for (byte[] block : PerByteRollingHashSplitter.split(data, MAX_BLOCK_SIZE)) {
+      blackhole.consume(block);
+    }
+  }
+
+  @Benchmark
+  public void splitter(Blackhole blackhole) {
+    splitter.split(new ByteArrayInputStream(data)).forEachRemaining(blackhole::consume);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(StreamSplitterBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -25,8 +25,17 @@ import org.junit.runners.JUnit4;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -57,4 +66,156 @@ public class StreamSplitterTest {
     assertThat(Sets.union(fileAHashes, fileBHashes).size())
         .isLessThan(fileAHashes.size() + fileBHashes.size());
   }
+
+  @Test
+  public void rollingHashCutsMatchPerByteReference() {
+    Random rnd = new Random(1);
+    byte[] random = MoreArrays.randomBytes(rnd, 12 << 20);
+    byte[] repetitive = new byte[3 << 20];
+    for (int i = 0; i < repetitive.length; i++) {
+      repetitive[i] = (byte) (i % 251 < 128 ? 0 : i);
+    }
+
+    for (byte[] data : List.of(random, repetitive, new byte[0], new byte[] {42})) {
+      for (int maxBlockSize : new int[] {1000, 3 << 20, 32 << 20}) {
+        List<byte[]> expected = PerByteRollingHashSplitter.split(data, maxBlockSize);
+        StreamSplitter splitter = StreamSplitter.rollingHashSplitter(maxBlockSize);
+        assertSameBlocks(splitter.split(new ByteArrayInputStream(data)), expected);
+        assertSameBlocks(splitter.split(new ShortReadInputStream(data, rnd)), expected);
+      }
+    }
+  }
+
+  @Test
+  public void fastCdcBlocksRespectSizeBounds() {
+    int minSize = 16 << 10;
+    int avgSize = 64 << 10;
+    int maxSize = 256 << 10;
+    byte[] data = MoreArrays.randomBytes(new Random(2), 16 << 20);
+    StreamSplitter splitter = StreamSplitter.fastCdcSplitter(minSize, avgSize, maxSize);
+
+    List<byte[]> blocks = new ArrayList<>();
+    splitter.split(new ByteArrayInputStream(data)).forEachRemaining(blocks::add);
+
+    int offset = 0;
+    for (int i = 0; i < blocks.size(); i++) {
+      byte[] block = blocks.get(i);
+      if (i < blocks.size() - 1) {
+        assertThat(block.length).isAtLeast(minSize);
+      }
+      assertThat(block.length).isAtMost(maxSize);
+      assertThat(block).isEqualTo(Arrays.copyOfRange(data, offset, offset + block.length));
+      offset += block.length;
+    }
+    assertThat(offset).isEqualTo(data.length);
+
+    int averageSize = data.length / blocks.size();
+    assertThat(averageSize).isAtLeast(avgSize / 2);
+    assertThat(averageSize).isAtMost(2 * avgSize);
+  }
+
+  @Test
+  public void fastCdcIsIndependentOfReadSizes() {
+    Random rnd = new Random(3);
+    byte[] data = MoreArrays.randomBytes(rnd, 8 << 20);
+    StreamSplitter splitter = StreamSplitter.fastCdcSplitter(2 << 10, 8 << 10, 64 << 10);
+
+    List<byte[]> expected = new ArrayList<>();
+    splitter.split(new ByteArrayInputStream(data)).forEachRemaining(expected::add);
+    assertSameBlocks(splitter.split(new ShortReadInputStream(data, rnd)), expected);
+  }
+
+  @Test
+  public void fastCdcResynchronizesAfterInsertion() {
+    Random rnd = new Random(4);
+    byte[] fileA = MoreArrays.randomBytes(rnd, 4 << 20);
+    byte[] fileB = new byte[fileA.length + 100];
+    System.arraycopy(fileA, 0, fileB, 0, 1 << 20);
+    System.arraycopy(fileA, 1 << 20, fileB, (1 << 20) + 100, fileA.length - (1 << 20));
+
+    StreamSplitter splitter = StreamSplitter.fastCdcSplitter(4 << 10, 16 << 10, 128 << 10);
+
+    Set<HashCode> fileAHashes = new HashSet<>();
+    splitter
+        .split(new ByteArrayInputStream(fileA))
+        .forEachRemaining(block -> fileAHashes.add(Hashing.sha256().hashBytes(block)));
+
+    Set<HashCode> fileBHashes = new HashSet<>();
+    splitter
+        .split(new ByteArrayInputStream(fileB))
+        .forEachRemaining(block -> fileBHashes.add(Hashing.sha256().hashBytes(block)));
+
+    assertThat(Sets.difference(fileBHashes, fileAHashes).size()).isAtMost(2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void fastCdcRequiresPowerOfTwoAverage() {
+    StreamSplitter.fastCdcSplitter(1000, 3000, 10000);
+  }
+
+  @Test
+  public void mappedSplitMatchesStreamSplit() throws IOException {
+    byte[] data = MoreArrays.randomBytes(new Random(5), 6 << 20);
+    Path file = Files.createTempFile("gletscher", ".bin");
+    try {
+      Files.write(file, data);
+      List<StreamSplitter> splitters =
+          List.of(
+              StreamSplitter.rollingHashSplitter(1 << 20),
+              StreamSplitter.fastCdcSplitter(4 << 10, 16 << 10, 64 << 10),
+              StreamSplitter.fixedSizeSplitter(100_000));
+      for (StreamSplitter splitter : splitters) {
+        List<byte[]> expected = new ArrayList<>();
+        splitter.split(new ByteArrayInputStream(data)).forEachRemaining(expected::add);
+
+        // Small mappings force blocks to straddle mapping boundaries.
+        for (long mappingSize : new long[] {1 << 30, 300_000}) {
+          try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<byte[]> blocks = new ArrayList<>();
+            Iterator<ByteBuffer> it = splitter.split(channel, mappingSize);
+            while (it.hasNext()) {
+              ByteBuffer block = it.next();
+              assertThat(block.isReadOnly()).isTrue();
+              byte[] bytes = new byte[block.remaining()];
+              block.get(bytes);
+              blocks.add(bytes);
+            }
+            assertSameBlocks(blocks.iterator(), expected);
+          }
+        }
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static void assertSameBlocks(Iterator<byte[]> actual, List<byte[]> expected) {
+    List<byte[]> blocks = new ArrayList<>();
+    actual.forEachRemaining(blocks::add);
+    assertThat(blocks).hasSize(expected.size());
+    for (int i = 0; i < blocks.size(); i++) {
+      assertThat(blocks.get(i)).isEqualTo(expected.get(i));
+    }
+  }
+
+  /** Returns a random number of bytes on each read. */
+  private static class ShortReadInputStream extends InputStream {
+    private final ByteArrayInputStream delegate;
+    private final Random rnd;
+
+    ShortReadInputStream(byte[] data, Random rnd) {
+      this.delegate = new ByteArrayInputStream(data);
+      this.rnd = rnd;
+    }
+
+    @Override
+    public int read() {
+      return delegate.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      return delegate.read(b, off, Math.min(len, 1 + rnd.nextInt(100_000)));
+    }
+  }
 }